@@ -8,6 +8,10 @@ public class DataObj extends TrxnObj {
     // TrxnObj:: public static final int READ = 0;
     // TrxnObj:: public static final int WRITE = 1;
 
+    // on a table lock: the row locks taken under it, counted towards lock
+    // escalation
+    int rows;
+
     DataObj() {
         super();
     }
@@ -16,16 +20,27 @@ public class DataObj extends TrxnObj {
         super(xid, strData, lockType);
     }
 
+    // sets up a new or released lock table entry for item, a String or a
+    // LockKey
+    void reset(int xid, Object item, int lockType) {
+        this.xid = xid;
+        this.item = item;
+        this.strData = (item instanceof String) ? (String) item : null;
+        this.lockType = lockType;
+        this.rows = 0;
+    }
+
     public int hashCode() {
-        return strData.hashCode();
+        return item.hashCode();
     }
 
     public int key() {
-        return strData.hashCode();
+        return item.hashCode();
     }
 
     public Object clone() {
-        DataObj d = new DataObj(this.xid, this.strData, this.lockType);
+        DataObj d = new DataObj();
+        d.reset(this.xid, this.item, this.lockType);
         return d;
     }
 }
\ No newline at end of file
@@ -0,0 +1,173 @@
+package lockmgr;
+
+/**
+ * Hash table from int keys, such as xids, to objects, replacing TPHashTable
+ * and HashMaps keyed by Integer in the lock table. Keys are stored unboxed in
+ * an open-addressing table with linear probing, so get, put and remove
+ * allocate nothing and touch a couple of adjacent slots, however many
+ * transactions are active. The table doubles once it is half full and halves
+ * again once it is an eighth full; removal shifts the following entries back
+ * instead of leaving tombstones.
+ * <p>
+ * Values must not be null. Not synchronized, the lock table stripes call it
+ * with their latch held.
+ */
+class IntHashTable<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    // keys[i] is in use iff values[i] != null
+    private int[] keys;
+
+    private Object[] values;
+
+    // keys.length - 1, keys.length being a power of 2
+    private int mask;
+
+    // 32 - log2(keys.length)
+    private int shift;
+
+    private int size = 0;
+
+    // the table never shrinks below its initial capacity
+    private int minCapacity;
+
+    IntHashTable() {
+        this(MIN_CAPACITY);
+    }
+
+    // room for expected entries without growing
+    IntHashTable(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expected) {
+            capacity <<= 1;
+        }
+        this.minCapacity = capacity;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    // Fibonacci hashing: the top bits of key times 2^32 / golden ratio,
+    // which spread consecutive xids evenly over the table
+    private int slot(int key) {
+        return (key * 0x9E3779B9) >>> this.shift;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // returns the value of key, or null.
+    V get(int key) {
+        for (int i = slot(key); this.values[i] != null; i = (i + 1) & this.mask) {
+            if (this.keys[i] == key) {
+                return (V) this.values[i];
+            }
+        }
+        return null;
+    }
+
+    boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    // maps key to value, returns the value it replaced or null.
+    V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int i = slot(key);
+        for (; this.values[i] != null; i = (i + 1) & this.mask) {
+            if (this.keys[i] == key) {
+                V old = (V) this.values[i];
+                this.values[i] = value;
+                return old;
+            }
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+        if (++this.size > (this.mask + 1) / 2) {
+            rehash((this.mask + 1) * 2);
+        }
+        return null;
+    }
+
+    // removes key, returns its value or null.
+    V remove(int key) {
+        for (int i = slot(key); this.values[i] != null; i = (i + 1) & this.mask) {
+            if (this.keys[i] == key) {
+                V old = (V) this.values[i];
+                delete(i);
+                return old;
+            }
+        }
+        return null;
+    }
+
+    // removes key only if it maps to value itself, returns true if it did.
+    boolean remove(int key, V value) {
+        for (int i = slot(key); this.values[i] != null; i = (i + 1) & this.mask) {
+            if (this.keys[i] == key) {
+                if (this.values[i] != value) {
+                    return false;
+                }
+                delete(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void clear() {
+        if (this.size > 0) {
+            allocate(this.minCapacity);
+            this.size = 0;
+        }
+    }
+
+    // empties slot i and moves back the entries after it that probed past
+    // it, so every entry stays reachable from its home slot. Halves a grown
+    // table once it is only an eighth full.
+    private void delete(int i) {
+        this.size--;
+        int gap = i;
+        for (int j = (i + 1) & this.mask; this.values[j] != null; j = (j + 1) & this.mask) {
+            int home = slot(this.keys[j]);
+            // j may move to gap unless its home lies cyclically in (gap, j]
+            if (((j - home) & this.mask) >= ((j - gap) & this.mask)) {
+                this.keys[gap] = this.keys[j];
+                this.values[gap] = this.values[j];
+                gap = j;
+            }
+        }
+        this.values[gap] = null;
+        if (this.size < (this.mask + 1) / 8 && this.mask + 1 > this.minCapacity) {
+            rehash((this.mask + 1) / 2);
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                while (this.values[j] != null) {
+                    j = (j + 1) & this.mask;
+                }
+                this.keys[j] = oldKeys[i];
+                this.values[j] = oldValues[i];
+            }
+        }
+    }
+}
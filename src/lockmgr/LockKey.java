@@ -0,0 +1,120 @@
+package lockmgr;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Names a data item to lock by the table it belongs to and its key, so a
+ * lock request does not have to build a "table:key" string. The table is a
+ * small id handed out by tableId() and the hash of the key is computed once.
+ * Two LockKeys are equal only if their tables are the same and their keys are
+ * equal, so keys whose hashes collide still get locks of their own.
+ * <p>
+ * LockKeys are ordered by table, the table key first, then by key. Locking
+ * in this order never deadlocks, see LockManager.lockAll().
+ */
+public final class LockKey implements Comparable {
+    // table name -> Integer id, and the names indexed by id
+    private static Hashtable tableIds = new Hashtable();
+
+    private static Vector tableNames = new Vector();
+
+    // table id - 1 -> LockKey of the table itself
+    private static Vector tableKeys = new Vector();
+
+    // key of every table lock, one per table
+    private static final Object TABLE = new Object() {
+        public String toString() {
+            return "*";
+        }
+    };
+
+    private final int table;
+
+    private final int hash;
+
+    private final Object key;
+
+    /**
+     * @param table id of the table, see tableId()
+     * @param key   key of the data item in that table; should be non-null and
+     *              immutable while locked.
+     */
+    public LockKey(int table, Object key) {
+        this.table = table;
+        this.key = key;
+        this.hash = 31 * table + key.hashCode();
+    }
+
+    /**
+     * @return the id of the table named <tt>tablename</tt>, assigned on
+     * first use. Ids are positive and stay the same for the life of the JVM.
+     */
+    public static synchronized int tableId(String tablename) {
+        Integer id = (Integer) tableIds.get(tablename);
+        if (id == null) {
+            tableNames.addElement(tablename);
+            id = new Integer(tableNames.size());
+            tableIds.put(tablename, id);
+            tableKeys.addElement(new LockKey(id.intValue(), TABLE));
+        }
+        return id.intValue();
+    }
+
+    /**
+     * @return the key locking the whole table with id <tt>table</tt>, the
+     * parent of every row key of the table.
+     */
+    public static LockKey table(int table) {
+        return (LockKey) tableKeys.elementAt(table - 1);
+    }
+
+    public boolean isTable() {
+        return this.key == TABLE;
+    }
+
+    public int getTable() {
+        return this.table;
+    }
+
+    public Object getKey() {
+        return this.key;
+    }
+
+    public int hashCode() {
+        return this.hash;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LockKey)) {
+            return false;
+        }
+        LockKey k = (LockKey) o;
+        return k.hash == this.hash && k.table == this.table && k.key.equals(this.key);
+    }
+
+    public int compareTo(Object o) {
+        LockKey k = (LockKey) o;
+        if (this.table != k.table) {
+            return (this.table < k.table) ? -1 : 1;
+        }
+        if (this.isTable() || k.isTable()) {
+            return (this.isTable() ? 0 : 1) - (k.isTable() ? 0 : 1);
+        }
+        if (this.key instanceof Comparable && this.key.getClass() == k.key.getClass()) {
+            return ((Comparable) this.key).compareTo(k.key);
+        }
+        if (this.hash != k.hash) {
+            return (this.hash < k.hash) ? -1 : 1;
+        }
+        return this.key.toString().compareTo(k.key.toString());
+    }
+
+    // only used for messages, spelled like the string keys it replaces
+    public String toString() {
+        return tableNames.elementAt(this.table - 1) + ":" + this.key;
+    }
+}
@@ -1,34 +1,227 @@
 package lockmgr;
 
-import java.util.BitSet;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Implements a Lock Manager. Each Resource Manager creates one instance of this
  * class, to which all lock requests are directed.
+ * <p>
+ * The lock manager keeps statistics of its lock requests, see
+ * LockManagerMXBean.
  */
-public class LockManager {
+public class LockManager implements LockManagerMXBean {
     /* Lock request type. */
     public static final int READ = 0;
 
     public static final int WRITE = 1;
 
+    /*
+     * Read with the intent to write: compatible with READ locks but not with
+     * another UPDATE lock, so two read-modify-write transactions on the same
+     * item queue up instead of both converting READ to WRITE and deadlocking.
+     */
+    public static final int UPDATE = 2;
+
+    /*
+     * Intention modes, taken on a table before locking rows of it: rows
+     * will be read (IS), rows will be written (IX), the whole table is read
+     * and some rows will be written (SIX). READ, UPDATE and WRITE on a table
+     * cover all of its rows.
+     */
+    public static final int INTENTION_READ = 3;
+
+    public static final int INTENTION_WRITE = 4;
+
+    public static final int READ_INTENTION_WRITE = 5;
+
+    private static final String[] MODE_NAMES = {"READ", "WRITE", "UPDATE", "INTENTION_READ", "INTENTION_WRITE",
+            "READ_INTENTION_WRITE"};
+
+    // COMPATIBLE[held][requested], indexed by lock mode
+    private static final boolean[][] COMPATIBLE = {
+            /* READ */ {true, false, true, true, false, false},
+            /* WRITE */ {false, false, false, false, false, false},
+            /* UPDATE */ {true, false, false, true, false, false},
+            /* INTENTION_READ */ {true, false, true, true, true, true},
+            /* INTENTION_WRITE */ {false, false, false, true, true, false},
+            /* READ_INTENTION_WRITE */ {false, false, false, true, false, false}};
+
+    /* Deadlock handling policies. */
+    public static final int DETECT_TIMEOUT = 0;
+
+    public static final int DETECT_WAITS_FOR = 1;
+
+    public static final int PREVENT_WAIT_DIE = 2;
+
+    public static final int PREVENT_WOUND_WAIT = 3;
+
+    /* Victim selection when a waits-for cycle is found. */
+    public static final int VICTIM_YOUNGEST = 0;
+
+    public static final int VICTIM_FEWEST_LOCKS = 1;
+
     /* A lock request is considered deadlocked after 10 sec. */
-    private static int DEADLOCK_TIMEOUT = 10000;
+    static int DEADLOCK_TIMEOUT = 10000;
 
     private static int TABLE_SIZE = 2039;
 
-    private static TPHashTable lockTable = new TPHashTable(TABLE_SIZE);
+    /* Upper bounds in milliseconds of the wait time histogram buckets. */
+    static final long[] WAIT_BUCKET_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    /* Number of data items getHotItems() reports. */
+    private static final int HOT_ITEMS = 10;
+
+    private LockStripe[] stripes;
+
+    private WaitsForGraph graph;
 
-    private static TPHashTable stampTable = new TPHashTable(TABLE_SIZE);
+    private volatile int deadlockPolicy = DETECT_TIMEOUT;
 
-    private static TPHashTable waitTable = new TPHashTable(TABLE_SIZE);
+    private volatile int victimPolicy = VICTIM_YOUNGEST;
+
+    private volatile boolean fair = true;
+
+    private ScheduledExecutorService asyncExecutor = null;
+
+    // row locks per table and transaction before escalating, 0 if never
+    private volatile int escalationThreshold = 0;
+
+    // deadlocks resolved by the waits-for graph and by the timeout, with the
+    // accumulated time it took to resolve them
+    private long detectedDeadlocks = 0;
+
+    private long detectionNanos = 0;
+
+    private long timedOutDeadlocks = 0;
+
+    private long timeoutMillis = 0;
+
+    private long preventedDeadlocks = 0;
+
+    private long escalations = 0;
 
     /**
      * Each Resource Manager needs to construct one instance of the LockManager.
+     * Every instance has a lock table of its own, so Resource Managers sharing
+     * a JVM never see each other's locks.
      */
     public LockManager() {
+        this(1);
+    }
+
+    /**
+     * Constructs a LockManager whose lock table is split into
+     * <tt>nStripes</tt> independent stripes. A data item is always handled by
+     * the stripe its name hashes to, so requests on items in different stripes
+     * proceed in parallel.
+     *
+     * @param nStripes number of stripes, should be positive.
+     */
+    public LockManager(int nStripes) {
         super();
+        if (nStripes < 1) {
+            nStripes = 1;
+        }
+        int stripeSize = Math.max(TABLE_SIZE / nStripes, 31) | 1;
+        this.stripes = new LockStripe[nStripes];
+        for (int i = 0; i < nStripes; i++) {
+            this.stripes[i] = new LockStripe(stripeSize);
+        }
+        this.graph = new WaitsForGraph();
+    }
+
+    /**
+     * Selects how deadlocks are handled. With DETECT_TIMEOUT a lock request
+     * is aborted once it has waited for DEADLOCK_TIMEOUT. With
+     * DETECT_WAITS_FOR every blocking request is checked against the
+     * waits-for graph and a victim on a cycle is aborted at once.
+     * <p>
+     * PREVENT_WAIT_DIE and PREVENT_WOUND_WAIT never let a cycle form, using
+     * the xid as timestamp (a smaller xid is an older transaction). Under
+     * wait-die a requester may only wait for younger holders, otherwise it
+     * is aborted. Under wound-wait an older requester aborts (wounds) the
+     * younger holders and waits for them to go away, while a younger
+     * requester waits. A wounded transaction is aborted when it is blocked
+     * or issues its next lock request.
+     * <p>
+     * With every policy the timeout remains as a fallback.
+     *
+     * @param policy one of LockManager.DETECT_TIMEOUT,
+     *               LockManager.DETECT_WAITS_FOR,
+     *               LockManager.PREVENT_WAIT_DIE or
+     *               LockManager.PREVENT_WOUND_WAIT
+     */
+    public void setDeadlockPolicy(int policy) {
+        if (policy >= DETECT_TIMEOUT && policy <= PREVENT_WOUND_WAIT) {
+            this.deadlockPolicy = policy;
+        }
+    }
+
+    public int getDeadlockPolicy() {
+        return this.deadlockPolicy;
+    }
+
+    /**
+     * Selects the transaction aborted when a waits-for cycle is found: the
+     * youngest one (largest xid) or the one holding the fewest locks.
+     *
+     * @param policy one of LockManager.VICTIM_YOUNGEST or
+     *               LockManager.VICTIM_FEWEST_LOCKS
+     */
+    public void setVictimPolicy(int policy) {
+        if (policy == VICTIM_YOUNGEST || policy == VICTIM_FEWEST_LOCKS) {
+            this.victimPolicy = policy;
+        }
+    }
+
+    /**
+     * Selects how blocked lock requests are served. A fair lock manager
+     * grants each data item to its waiters in the order they came, and queues
+     * a new request behind the waiters it conflicts with even if it would fit
+     * with the current holders. An unfair one lets new requests and later waiters overtake a
+     * waiter that is still blocked, which gives more throughput but lets a
+     * stream of readers starve a writer. Lock conversions go ahead of new
+     * requests either way. Fair is the default.
+     */
+    public void setFair(boolean fair) {
+        this.fair = fair;
+    }
+
+    public boolean isFair() {
+        return this.fair;
+    }
+
+    /**
+     * Enables lock escalation: once a transaction holds <tt>rows</tt> row
+     * locks on one table, they are traded for a single lock on the table,
+     * READ if it only read rows and WRITE otherwise. The escalation is only
+     * done if the table lock can be granted at once; if not, it is tried
+     * again after another <tt>rows</tt> rows.
+     *
+     * @param rows number of row locks that triggers escalation, 0 to never
+     *             escalate
+     */
+    public void setEscalationThreshold(int rows) {
+        if (rows >= 0) {
+            this.escalationThreshold = rows;
+        }
+    }
+
+    public int getEscalationThreshold() {
+        return this.escalationThreshold;
     }
 
     /**
@@ -40,86 +233,211 @@ public class LockManager {
      *
      * @param xid      Transaction Identifier, should be non-negative.
      * @param strData  identifies the data element to be locked; should be non-null.
-     * @param lockType one of LockManager.READ or LockManager.WRITE
+     * @param lockType one of the lock modes of LockManager
      * @return true if operation succeeded; false if not (due to invalid
      * parameters).
-     * @throws DeadlockException if deadlock is detected (using a timeout)
+     * @throws DeadlockException if deadlock is detected (using a timeout or,
+     *                           if enabled, the waits-for graph)
      */
     public boolean lock(int xid, String strData, int lockType) throws DeadlockException {
+        return lockItem(xid, strData, lockType);
+    }
 
-        // if any parameter is invalid, then return false
-        if (xid < 0) {
+    /**
+     * Locks the data item identified by <tt>key</tt>, like
+     * lock(int, String, int) but without building a string for the item. A
+     * LockKey never conflicts with a String item.
+     * <p>
+     * Locks are hierarchical: the row <tt>key</tt> is locked only after its
+     * table, LockKey.table(key.getTable()), has been locked in
+     * INTENTION_READ mode for a READ request and INTENTION_WRITE otherwise.
+     * If the transaction holds a table lock that covers the request, e.g.
+     * READ on the table for a READ request, no row lock is taken. A table
+     * key is locked as it is. A new row lock may escalate to a table lock,
+     * see setEscalationThreshold().
+     *
+     * @param xid      Transaction Identifier, should be non-negative.
+     * @param key      identifies the data element to be locked; should be non-null.
+     * @param lockType one of the lock modes of LockManager
+     * @return true if operation succeeded; false if not (due to invalid
+     * parameters).
+     * @throws DeadlockException if deadlock is detected
+     */
+    public boolean lock(int xid, LockKey key, int lockType) throws DeadlockException {
+        if (key == null || key.isTable()) {
+            return lockItem(xid, key, lockType);
+        }
+        if (lockType != READ && lockType != UPDATE && lockType != WRITE) {
+            // rows have no rows to intend anything on
             return false;
         }
-
-        if (strData == null) {
+        LockKey table = LockKey.table(key.getTable());
+        if (!lockItem(xid, table, (lockType == READ) ? INTENTION_READ : INTENTION_WRITE)) {
+            return false;
+        }
+        if (covers(stripeFor(table).lockMode(xid, table), lockType)) {
+            return true;
+        }
+        if (this.escalationThreshold == 0) {
+            return lockItem(xid, key, lockType);
+        }
+        boolean newRow = stripeFor(key).lockMode(xid, key) < 0;
+        if (!lockItem(xid, key, lockType)) {
             return false;
         }
+        if (newRow) {
+            escalate(xid, table);
+        }
+        return true;
+    }
 
-        if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE)) {
+    /**
+     * Locks all data items identified by <tt>keys</tt> in mode
+     * <tt>lockType</tt>, like lock(int, LockKey, int) for each of them, but
+     * in the order of LockKey.compareTo() rather than the order given.
+     * Transactions that take all the items they need through lockAll() never
+     * deadlock on them, whatever order their callers list them in.
+     *
+     * @param xid      Transaction Identifier, should be non-negative.
+     * @param keys     identify the data elements to be locked; should be
+     *                 non-null, duplicates are locked once.
+     * @param lockType one of LockManager.READ, LockManager.UPDATE or
+     *                 LockManager.WRITE
+     * @return true if operation succeeded; false if not (due to invalid
+     * parameters).
+     * @throws DeadlockException if deadlock is detected
+     */
+    public boolean lockAll(int xid, LockKey[] keys, int lockType) throws DeadlockException {
+        if (keys == null) {
             return false;
         }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) {
+                return false;
+            }
+        }
+        LockKey[] sorted = (LockKey[]) keys.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            if (i > 0 && sorted[i].equals(sorted[i - 1])) {
+                continue;
+            }
+            if (!lock(xid, sorted[i], lockType)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        // two objects in lock table for easy lookup.
-        TrxnObj trxnObj = new TrxnObj(xid, strData, lockType);
-        DataObj dataObj = new DataObj(xid, strData, lockType);
+    // counts a row newly locked by xid under table, and every
+    // escalationThreshold rows tries to trade the row locks for one lock on
+    // table
+    private void escalate(int xid, LockKey table) {
+        int threshold = this.escalationThreshold;
+        LockStripe stripe = stripeFor(table);
+        int rows = stripe.countRow(xid, table);
+        if (threshold == 0 || rows == 0 || rows % threshold != 0) {
+            return;
+        }
+        int mode = (stripe.lockMode(xid, table) == INTENTION_READ) ? READ : WRITE;
+        // the other transactions on the table may be waiting for one of our
+        // rows, so waiting for them could deadlock; keep the rows for now
+        if (!stripe.tryLock(xid, table, mode, this)) {
+            return;
+        }
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i].unlockRows(xid, table.getTable(), this);
+        }
+        recordEscalation();
+    }
 
-        // return true when there is no lock conflict or throw a deadlock
-        // exception.
-        try {
-            boolean bConflict = true;
-            BitSet bConvert = new BitSet(1);
-
-            while (bConflict) {
-                synchronized (this.lockTable) {
-                    // check if this lock request conflicts with existing locks
-                    bConflict = lockConflict(dataObj, bConvert);
-                    if (!bConflict) {
-                        // no lock conflict
-                        synchronized (this.stampTable) {
-                            // remove the timestamp (if any) for this lock
-                            // request
-                            TimeObj timeObj = new TimeObj(xid);
-                            this.stampTable.remove(timeObj);
-                        }
-                        synchronized (this.waitTable) {
-                            // remove the entry for this transaction from
-                            // waitTable (if it
-                            // is there) as it has been granted its lock request
-                            WaitObj waitObj = new WaitObj(xid, strData, lockType);
-                            this.waitTable.remove(waitObj);
-                        }
+    /**
+     * @return the mode of the lock the transaction with id <tt>xid</tt>
+     * holds on <tt>key</tt>, or -1 if it holds none. A row covered by a
+     * lock on its table need not be locked itself.
+     */
+    public int lockMode(int xid, LockKey key) {
+        return stripeFor(key).lockMode(xid, key);
+    }
 
-                        if (bConvert.get(0) == true) {
-                            // lock conversion
-                            // *** ADD CODE HERE *** to carry out the lock
-                            // conversion in the
-                            // lock table
-                            System.out.print("Converting lock...");
-                            convertLockTableObj(trxnObj);
-                            convertLockTableObj(dataObj);
-                            System.out.println("done");
-
-                        } else {
-                            // a lock request that is not lock conversion
-                            this.lockTable.add(trxnObj);
-                            this.lockTable.add(dataObj);
+    /**
+     * Locks the data item identified by <tt>key</tt> like
+     * lock(int, LockKey, int), but does not block: if the lock cannot be
+     * granted at once, the request is queued and the returned future
+     * completes once it is granted, without a thread waiting for it. The
+     * future fails with a DeadlockException if the request is chosen as
+     * deadlock victim or times out, as lock() would throw.
+     * <p>
+     * A queued request completes on the lock manager's single async thread,
+     * so dependent actions that block should run on an executor of their
+     * own.
+     *
+     * @param xid      Transaction Identifier, should be non-negative.
+     * @param key      identifies the data element to be locked; should be non-null.
+     * @param lockType one of the lock modes of LockManager
+     * @return a future of true once the lock is granted, or of false due to
+     * invalid parameters.
+     */
+    public CompletableFuture<Boolean> lockAsync(final int xid, final LockKey key, final int lockType) {
+        if (key == null || key.isTable()) {
+            return lockItemAsync(xid, key, lockType);
+        }
+        if (lockType != READ && lockType != UPDATE && lockType != WRITE) {
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        }
+        final LockKey table = LockKey.table(key.getTable());
+        return lockItemAsync(xid, table, (lockType == READ) ? INTENTION_READ : INTENTION_WRITE)
+                .thenCompose(new Function<Boolean, CompletionStage<Boolean>>() {
+                    public CompletionStage<Boolean> apply(Boolean locked) {
+                        if (!locked.booleanValue() || covers(stripeFor(table).lockMode(xid, table), lockType)) {
+                            return CompletableFuture.completedFuture(locked);
                         }
+                        final boolean newRow = stripeFor(key).lockMode(xid, key) < 0;
+                        return lockItemAsync(xid, key, lockType).thenApply(new Function<Boolean, Boolean>() {
+                            public Boolean apply(Boolean rowLocked) {
+                                if (rowLocked.booleanValue() && newRow && escalationThreshold > 0) {
+                                    escalate(xid, table);
+                                }
+                                return rowLocked;
+                            }
+                        });
                     }
-                }
-                if (bConflict) {
-                    // lock conflict exists, wait
-                    waitLock(dataObj);
-                }
-            }
-        } catch (DeadlockException deadlock) {
-            throw deadlock;
-        } catch (RedundantLockRequestException redundantlockrequest) {
-            // just ignore the redundant lock request
-            return true;
+                });
+    }
+
+    private CompletableFuture<Boolean> lockItemAsync(int xid, Object item, int lockType) {
+        if (xid < 0 || item == null || !isLockType(lockType)) {
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        }
+        if (isVictim(xid)) {
+            CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+            future.completeExceptionally(new DeadlockException(xid, "Chosen as deadlock victim."));
+            return future;
+        }
+        return stripeFor(item).lockAsync(xid, item, lockType, this);
+    }
+
+    private boolean lockItem(int xid, Object item, int lockType) throws DeadlockException {
+
+        // if any parameter is invalid, then return false
+        if (xid < 0) {
+            return false;
         }
 
-        return true;
+        if (item == null) {
+            return false;
+        }
+
+        if (!isLockType(lockType)) {
+            return false;
+        }
+
+        if (isVictim(xid)) {
+            // wounded, or picked as victim while being granted its last lock
+            throw new DeadlockException(xid, "Chosen as deadlock victim.");
+        }
+
+        return stripeFor(item).lock(xid, item, lockType, this);
     }
 
     /**
@@ -136,251 +454,419 @@ public class LockManager {
             return false;
         }
 
-        TrxnObj trxnQueryObj = new TrxnObj(xid, "", -1); // Only used in
-        // elements() call
-        // below.
-        synchronized (this.lockTable) {
-            Vector vect = this.lockTable.elements(trxnQueryObj);
-
-            TrxnObj trxnObj;
-            Vector waitVector;
-            WaitObj waitObj;
-            int size = vect.size();
-
-            for (int i = (size - 1); i >= 0; i--) {
-
-                trxnObj = (TrxnObj) vect.elementAt(i);
-                this.lockTable.remove(trxnObj);
-
-                DataObj dataObj = new DataObj(trxnObj.getXId(), trxnObj.getDataName(), trxnObj.getLockType());
-                this.lockTable.remove(dataObj);
-
-                // check if there are any waiting transactions.
-                synchronized (this.waitTable) {
-                    // get all the transactions waiting on this dataObj
-                    waitVector = this.waitTable.elements(dataObj);
-                    int waitSize = waitVector.size();
-                    for (int j = 0; j < waitSize; j++) {
-                        waitObj = (WaitObj) waitVector.elementAt(j);
-                        if (waitObj.getLockType() == LockManager.WRITE) {
-                            if (j == 0) {
-                                // get all other transactions which have locks
-                                // on the
-                                // data item just unlocked.
-                                Vector vect1 = this.lockTable.elements(dataObj);
-
-                                // remove interrupted thread from waitTable only
-                                // if no
-                                // other transaction has locked this data item
-                                if (vect1.size() == 0
-
-                                        || (vect1.size() == 1 && ((XObj) vect1.elementAt(0)).getXId() == waitObj.getXId())
-
-                                ) {
-                                    this.waitTable.remove(waitObj);
-
-                                    try {
-                                        synchronized (waitObj.getThread()) {
-                                            waitObj.getThread().notify();
-                                        }
-                                    } catch (Exception e) {
-                                        System.out.println("Exception on unlock\n" + e.getMessage());
-                                    }
-                                } else {
-                                    // some other transaction still has a lock
-                                    // on
-                                    // the data item just unlocked. So, WRITE
-                                    // lock
-                                    // cannot be granted.
-                                    break;
-                                }
-                            }
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i].unlockAll(xid, this);
+        }
+        this.graph.release(xid);
 
-                            // stop granting READ locks as soon as you find a
-                            // WRITE lock
-                            // request in the queue of requests
-                            break;
-                        } else if (waitObj.getLockType() == LockManager.READ) {
-                            // remove interrupted thread from waitTable.
-                            this.waitTable.remove(waitObj);
-
-                            try {
-                                synchronized (waitObj.getThread()) {
-                                    waitObj.getThread().notify();
-                                }
-                            } catch (Exception e) {
-                                System.out.println("Exception e\n" + e.getMessage());
-                            }
-                        }
-                    }
-                }
+        return true;
+    }
+
+    /**
+     * @return the number of deadlocks resolved through the waits-for graph.
+     */
+    public synchronized long getDetectedDeadlocks() {
+        return this.detectedDeadlocks;
+    }
+
+    /**
+     * @return the average time in milliseconds from the moment a waits-for
+     * cycle was found until its victim gave up, or 0 if there was none.
+     */
+    public synchronized double getAverageDetectionLatency() {
+        if (this.detectedDeadlocks == 0) {
+            return 0;
+        }
+        return this.detectionNanos / 1e6 / this.detectedDeadlocks;
+    }
+
+    /**
+     * @return the number of lock requests aborted by the deadlock timeout.
+     */
+    public synchronized long getTimedOutDeadlocks() {
+        return this.timedOutDeadlocks;
+    }
+
+    /**
+     * @return the average time in milliseconds a lock request aborted by the
+     * deadlock timeout had been blocked, or 0 if there was none.
+     */
+    public synchronized double getAverageTimeoutLatency() {
+        if (this.timedOutDeadlocks == 0) {
+            return 0;
+        }
+        return (double) this.timeoutMillis / this.timedOutDeadlocks;
+    }
+
+    /**
+     * @return the number of lock requests aborted by wait-die or wound-wait.
+     */
+    public synchronized long getPreventedDeadlocks() {
+        return this.preventedDeadlocks;
+    }
+
+    /**
+     * @return the number of times row locks were escalated to a table lock.
+     */
+    public synchronized long getEscalations() {
+        return this.escalations;
+    }
+
+    public long getGrants() {
+        return collectStatistics(null, null, false)[0];
+    }
+
+    public long getConversions() {
+        return collectStatistics(null, null, false)[1];
+    }
+
+    public long getWaits() {
+        return collectStatistics(null, null, false)[2];
+    }
+
+    public long[] getWaitTimeHistogram() {
+        long[] histogram = new long[WAIT_BUCKET_MILLIS.length + 1];
+        collectStatistics(histogram, null, false);
+        return histogram;
+    }
+
+    public long[] getWaitTimeBucketMillis() {
+        return (long[]) WAIT_BUCKET_MILLIS.clone();
+    }
+
+    public String[] getHotItems() {
+        return hotItems(HOT_ITEMS);
+    }
+
+    public String[] hotItems(int n) {
+        HashMap<Object, long[]> contention = new HashMap<Object, long[]>();
+        collectStatistics(null, contention, false);
+        ArrayList<Map.Entry<Object, long[]>> items = new ArrayList<Map.Entry<Object, long[]>>(contention.entrySet());
+        Collections.sort(items, new Comparator<Map.Entry<Object, long[]>>() {
+            public int compare(Map.Entry<Object, long[]> a, Map.Entry<Object, long[]> b) {
+                return Long.compare(b.getValue()[0], a.getValue()[0]);
             }
+        });
+        String[] hot = new String[Math.max(0, Math.min(n, items.size()))];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = items.get(i).getKey() + " " + items.get(i).getValue()[0];
         }
+        return hot;
+    }
 
-        return true;
+    public void resetStatistics() {
+        collectStatistics(null, null, true);
+        synchronized (this) {
+            this.detectedDeadlocks = 0;
+            this.detectionNanos = 0;
+            this.timedOutDeadlocks = 0;
+            this.timeoutMillis = 0;
+            this.preventedDeadlocks = 0;
+            this.escalations = 0;
+        }
     }
 
-    // returns true if the lock request on dataObj conflicts with
-    // already existing locks. If the lock request is a redundant one
-    // (for eg: if a transaction holds a read lock on certain data
-    // item and again requests for a read lock), then this is
-    // ignored. This is done by throwing RedundantLockRequestException
-    // which is handled appropriately by the caller. If the lock
-    // request is a conversion from READ lock to WRITE lock, then
-    // bitset is set.
-    private boolean lockConflict(DataObj dataObj, BitSet bitset) throws DeadlockException,
-            RedundantLockRequestException {
-        Vector vect = this.lockTable.elements(dataObj);
-        DataObj dataObj2;
-        int size = vect.size();
-
-        // as soon as a lock that conflicts with the current lock
-        // request is found, return true
-        for (int i = 0; i < size; i++) {
-            dataObj2 = (DataObj) vect.elementAt(i);
-            if (dataObj.getXId() == dataObj2.getXId()) {
-                // the transaction already has a lock on this data
-                // item which means that it is either relocking it or
-                // is converting the lock
-                if (dataObj.getLockType() == DataObj.READ) {
-                    // since transaction already has a lock (may be
-                    // READ, may be WRITE. we don't care) on this data
-                    // item and it is requesting a READ lock, this
-                    // lock request is redundant.
-                    throw new RedundantLockRequestException(dataObj.getXId(), "Redundant READ lock request");
-                } else if (dataObj.getLockType() == DataObj.WRITE) {
-                    // transaction already has a lock and is requesting a WRITE
-                    // lock
-                    // now there are two cases to analyze here
-                    // (1) transaction already had a READ lock
-                    // (2) transaction already had a WRITE lock
-                    // Seeing the comments at the top of this function might be
-                    // helpful
-                    // *** ADD CODE HERE *** to take care of both these cases
-                    if (dataObj2.getLockType() == DataObj.WRITE) {
-                        // since the transaction already has a write lock on
-                        // this
-                        // data item, this locm request is redundant
-                        throw new RedundantLockRequestException(dataObj.getXId(), "Redundant WRITE lock request");
-                    } else {
-                        // the transaction has a READ lock and has requested a
-                        // WRITE lock,
-                        // so this is a lock conversion request
-                        System.out.println("Want WRITE, have READ, requesting lock upgrade");
-                        bitset.set(0);
-                        // we can't just return false here, because some other
-                        // transaction may also have a READ lock. So we must
-                        // continue iterating through the chain of locks.
-                    }
-                }
-            } else {
-                if (dataObj.getLockType() == DataObj.READ) {
-                    if (dataObj2.getLockType() == DataObj.WRITE) {
-                        // transaction is requesting a READ lock and some other
-                        // transaction
-                        // already has a WRITE lock on it ==> conflict
-                        System.out.println("Want READ, someone has WRITE");
-                        return true;
-                    } else {
-                        // do nothing
-                    }
-                } else if (dataObj.getLockType() == DataObj.WRITE) {
-                    // transaction is requesting a WRITE lock and some other
-                    // transaction has either
-                    // a READ or a WRITE lock on it ==> conflict
-                    System.out.println("Want WRITE, someone has READ or WRITE");
-                    return true;
-                }
+    // sums up grants, conversions and waits of all stripes, their wait
+    // times into histogram and their contention per data item into
+    // contention, unless those are null
+    private long[] collectStatistics(long[] histogram, HashMap<Object, long[]> contention, boolean reset) {
+        long[] counters = new long[3];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i].collectStatistics(counters, histogram, contention, reset);
+        }
+        return counters;
+    }
+
+    /**
+     * Takes a snapshot of the lock table: every lock held and every blocked
+     * request with the time it has waited and the transactions it waits
+     * for. All stripes are held still while their entries are copied, so
+     * the snapshot is consistent across them; naming the data items and
+     * sorting is done after they have been let go. Lock requests stall for
+     * as long as copying takes, below a millisecond for 10000 locks.
+     */
+    public LockTableSnapshot snapshot() {
+        LockTableSnapshot snapshot = new LockTableSnapshot();
+        boolean fair = this.fair;
+        // in index order; nothing else holds two stripe latches at a time
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i].latch().lock();
+        }
+        try {
+            long now = System.nanoTime();
+            for (int i = 0; i < this.stripes.length; i++) {
+                this.stripes[i].snapshot(snapshot, fair, now);
+            }
+        } finally {
+            for (int i = this.stripes.length - 1; i >= 0; i--) {
+                this.stripes[i].latch().unlock();
             }
         }
+        snapshot.seal();
+        return snapshot;
+    }
+
+    public String[] dumpLockTable() {
+        return snapshot().toLines();
+    }
 
-        // no conflicting lock found, return false
-        return false;
-
-    }
-
-    private void waitLock(DataObj dataObj) throws DeadlockException {
-        // Check timestamp or add a new one.
-        // Will always add new timestamp for each new lock request since
-        // the timeObj is deleted each time the transaction succeeds in
-        // getting a lock (see Lock() )
-
-        TimeObj timeObj = new TimeObj(dataObj.getXId());
-        TimeObj timestamp = null;
-        long timeBlocked = 0;
-        Thread thisThread = Thread.currentThread();
-        WaitObj waitObj = new WaitObj(dataObj.getXId(), dataObj.getDataName(), dataObj.getLockType(), thisThread);
-
-        synchronized (this.stampTable) {
-            Vector vect = this.stampTable.elements(timeObj);
-            if (vect.size() == 0) {
-                // add the time stamp for this lock request to stampTable
-                this.stampTable.add(timeObj);
-                timestamp = timeObj;
-            } else if (vect.size() == 1) {
-                // lock operation could have timed out; check for deadlock
-                TimeObj prevStamp = (TimeObj) vect.firstElement();
-                timestamp = prevStamp;
-                timeBlocked = timeObj.getTime() - prevStamp.getTime();
-                if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-                    // the transaction has been waiting for a period greater
-                    // than the timeout period
-                    cleanupDeadlock(prevStamp, waitObj);
+    /**
+     * @return the number of stripes the lock table is split into.
+     */
+    public int getStripeCount() {
+        return this.stripes.length;
+    }
+
+    static boolean isLockType(int lockType) {
+        return lockType >= READ && lockType <= READ_INTENTION_WRITE;
+    }
+
+    static String modeName(int lockType) {
+        return isLockType(lockType) ? MODE_NAMES[lockType] : String.valueOf(lockType);
+    }
+
+    // true if a lock of mode held by one transaction conflicts with a request
+    // for mode requested by another
+    static boolean conflicts(int held, int requested) {
+        return !COMPATIBLE[held][requested];
+    }
+
+    /**
+     * @return true if a transaction holding a lock of mode <tt>held</tt> needs
+     * no other lock to get mode <tt>requested</tt>: WRITE covers every
+     * mode, UPDATE covers READ, READ_INTENTION_WRITE covers READ and the
+     * intention modes, READ and INTENTION_WRITE cover INTENTION_READ.
+     */
+    public static boolean covers(int held, int requested) {
+        if (held == requested || held == WRITE) {
+            return true;
+        }
+        switch (held) {
+            case UPDATE:
+                return requested == READ || requested == INTENTION_READ;
+            case READ_INTENTION_WRITE:
+                return requested == READ || requested == INTENTION_READ || requested == INTENTION_WRITE;
+            case READ:
+            case INTENTION_WRITE:
+                return requested == INTENTION_READ;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the weakest mode covering both <tt>held</tt> and
+     * <tt>requested</tt>, the mode a transaction holding <tt>held</tt> ends
+     * up with after requesting <tt>requested</tt>.
+     */
+    public static int upgrade(int held, int requested) {
+        if (covers(held, requested)) {
+            return held;
+        }
+        if (covers(requested, held)) {
+            return requested;
+        }
+        if ((held == READ || held == INTENTION_WRITE || held == READ_INTENTION_WRITE)
+                && (requested == READ || requested == INTENTION_WRITE || requested == READ_INTENTION_WRITE)) {
+            return READ_INTENTION_WRITE;
+        }
+        return WRITE;
+    }
+
+    private LockStripe stripeFor(Object item) {
+        if (this.stripes.length == 1) {
+            return this.stripes[0];
+        }
+        int h = item.hashCode();
+        h ^= (h >>> 16);
+        return this.stripes[(h & 0x7fffffff) % this.stripes.length];
+    }
+
+    // Called by a stripe when transaction xid is about to block on a lock
+    // held by holders, waiter being its thread or the WaitObj of an
+    // asynchronous request. Returns the reason if xid itself has to be
+    // aborted, null if it may go on waiting.
+    String waiting(int xid, int[] holders, Object waiter) {
+        if (this.deadlockPolicy == DETECT_TIMEOUT) {
+            return null;
+        }
+        if (this.deadlockPolicy == PREVENT_WAIT_DIE) {
+            for (int i = 0; i < holders.length; i++) {
+                if (holders[i] < xid) {
+                    recordPrevented();
+                    return "Wait-die...younger transaction dies.";
                 }
-            } else {
-                // should never get here. shouldn't be more than one time stamp
-                // per transaction
-                // because a transaction at a given time the transaction can be
-                // blocked on just one lock
-                // request.
             }
         }
+        this.graph.setWaiting(xid, waiter, holders);
+        if (this.deadlockPolicy == PREVENT_WOUND_WAIT) {
+            for (int i = 0; i < holders.length; i++) {
+                if (holders[i] > xid) {
+                    wakeUp(this.graph.markVictim(holders[i], System.nanoTime()));
+                }
+            }
+            return null;
+        }
+        if (this.deadlockPolicy != DETECT_WAITS_FOR) {
+            return null;
+        }
+        // the new edges may close several cycles, break them all
+        int[] cycle;
+        while ((cycle = this.graph.findCycle(xid)) != null) {
+            long foundAt = System.nanoTime();
+            int victim = chooseVictim(cycle);
+            if (victim == xid) {
+                this.graph.forget(xid);
+                recordDetected(System.nanoTime() - foundAt);
+                return "Waits-for cycle...deadlock.";
+            }
+            wakeUp(this.graph.markWaitingVictim(victim, foundAt));
+        }
+        return null;
+    }
 
-        // suspend thread and wait until notified...
+    // Called by a stripe when a lock that blocks the waiting transaction
+    // waiter has just been granted to holder.
+    void newHolder(int waiter, int holder) {
+        if (this.deadlockPolicy == DETECT_WAITS_FOR) {
+            // the cycle, if any, is found once holder blocks
+            this.graph.addEdge(waiter, holder);
+        } else if (this.deadlockPolicy == PREVENT_WAIT_DIE && holder < waiter) {
+            // the waiter now waits for an older transaction, it dies
+            wakeUp(this.graph.markVictim(waiter, System.nanoTime()));
+        } else if (this.deadlockPolicy == PREVENT_WOUND_WAIT && holder > waiter) {
+            // an older transaction waits for holder, wound it
+            this.graph.markVictim(holder, System.nanoTime());
+        }
+    }
 
-        synchronized (this.waitTable) {
-            if (!this.waitTable.contains(waitObj)) {
-                // register this transaction in the waitTable if it is not
-                // already there
-                this.waitTable.add(waitObj);
-            } else {
-                // else lock manager already knows the transaction is waiting.
-            }
+    // Called by a stripe before it handles a lock request, and after a blocked
+    // transaction has been woken up. Returns true if the transaction was
+    // chosen as victim or wounded in the meantime.
+    boolean isVictim(int xid) {
+        if (this.deadlockPolicy == DETECT_TIMEOUT) {
+            return false;
+        }
+        long foundAt = this.graph.victimSince(xid);
+        if (foundAt < 0) {
+            return false;
+        }
+        this.graph.forget(xid);
+        if (this.deadlockPolicy == DETECT_WAITS_FOR) {
+            recordDetected(System.nanoTime() - foundAt);
+        } else {
+            recordPrevented();
         }
+        return true;
+    }
 
-        synchronized (thisThread) {
-            try {
-                thisThread.wait(LockManager.DEADLOCK_TIMEOUT - timeBlocked);
-                TimeObj currTime = new TimeObj(dataObj.getXId());
-                timeBlocked = currTime.getTime() - timestamp.getTime();
-                if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-                    // the transaction has been waiting for a period greater
-                    // than the timeout period
-                    cleanupDeadlock(timestamp, waitObj);
-                } else {
-                    return;
+    private void wakeUp(Object waiter) {
+        if (waiter instanceof Thread) {
+            LockSupport.unpark((Thread) waiter);
+        } else if (waiter != null) {
+            // the caller may hold a stripe latch, give the request up from
+            // the async thread
+            final WaitObj waitObj = (WaitObj) waiter;
+            asyncExecutor().execute(new Runnable() {
+                public void run() {
+                    if (isVictim(waitObj.getXId())) {
+                        stripeFor(waitObj.item()).abandon(waitObj, LockManager.this, "Chosen as deadlock victim.");
+                    }
+                }
+            });
+        }
+    }
+
+    // Called by a stripe that granted the asynchronous request of waitObj
+    // with its latch held; completes the future from the async thread.
+    void granted(final WaitObj waitObj) {
+        if (waitObj.timeout != null) {
+            waitObj.timeout.cancel(false);
+        }
+        asyncExecutor().execute(new Runnable() {
+            public void run() {
+                stopWaiting(waitObj.getXId());
+                waitObj.future.complete(Boolean.TRUE);
+            }
+        });
+    }
+
+    // Called by a stripe that queued the asynchronous request of waitObj;
+    // gives it up once it has waited for DEADLOCK_TIMEOUT.
+    void startTimeout(final WaitObj waitObj) {
+        waitObj.timeout = asyncExecutor().schedule(new Runnable() {
+            public void run() {
+                if (stripeFor(waitObj.item()).abandon(waitObj, LockManager.this, "Sleep timeout...deadlock.")) {
+                    recordTimeout(DEADLOCK_TIMEOUT);
                 }
-            } catch (InterruptedException e) {
-                System.out.println("Thread interrupted?");
             }
+        }, DEADLOCK_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    // the single daemon thread that completes asynchronous lock requests
+    // and times them out, started on first use
+    private synchronized ScheduledExecutorService asyncExecutor() {
+        if (this.asyncExecutor == null) {
+            this.asyncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LockManager async");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
+        return this.asyncExecutor;
+    }
+
+    // Called by a stripe once xid stops waiting for a lock.
+    void stopWaiting(int xid) {
+        this.graph.remove(xid);
+    }
+
+    synchronized void recordTimeout(long timeBlocked) {
+        this.timedOutDeadlocks++;
+        this.timeoutMillis += timeBlocked;
+    }
+
+    private synchronized void recordEscalation() {
+        this.escalations++;
     }
 
-    // cleanupDeadlock cleans up stampTable and waitTable, and throws
-    // DeadlockException
-    private void cleanupDeadlock(TimeObj tmObj, WaitObj waitObj) throws DeadlockException {
-        synchronized (this.stampTable) {
-            synchronized (this.waitTable) {
-                this.stampTable.remove(tmObj);
-                this.waitTable.remove(waitObj);
+    private synchronized void recordPrevented() {
+        this.preventedDeadlocks++;
+    }
+
+    private synchronized void recordDetected(long nanos) {
+        this.detectedDeadlocks++;
+        this.detectionNanos += nanos;
+    }
+
+    private int chooseVictim(int[] cycle) {
+        int victim = cycle[0];
+        if (this.victimPolicy == VICTIM_FEWEST_LOCKS) {
+            int fewest = lockCount(victim);
+            for (int i = 1; i < cycle.length; i++) {
+                int count = lockCount(cycle[i]);
+                if (count < fewest || (count == fewest && cycle[i] > victim)) {
+                    fewest = count;
+                    victim = cycle[i];
+                }
+            }
+        } else {
+            for (int i = 1; i < cycle.length; i++) {
+                if (cycle[i] > victim) {
+                    victim = cycle[i];
+                }
             }
         }
-        throw new DeadlockException(waitObj.getXId(), "Sleep timeout...deadlock.");
+        return victim;
     }
 
-    private void convertLockTableObj(TrxnObj trxnObj) {
-        trxnObj.setLockType(TrxnObj.READ);
-        TrxnObj trxnObj2 = (TrxnObj) this.lockTable.get(trxnObj);
-        trxnObj2.setLockType(TrxnObj.WRITE);
+    private int lockCount(int xid) {
+        int count = 0;
+        for (int i = 0; i < this.stripes.length; i++) {
+            count += this.stripes[i].lockCount(xid);
+        }
+        return count;
     }
 }
\ No newline at end of file
@@ -0,0 +1,496 @@
+package lockmgr;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Benchmarks for the lock manager.
+ * <p>
+ * Usage: java lockmgr.LockManagerBench deadlock [seconds] [threads]
+ * <br>
+ * java lockmgr.LockManagerBench fastpath [seconds]
+ * <br>
+ * java lockmgr.LockManagerBench fairness [seconds] [readers]
+ * <br>
+ * java lockmgr.LockManagerBench waiters [transactions]
+ * <br>
+ * java lockmgr.LockManagerBench xidtable [max transactions]
+ */
+class LockManagerBench {
+
+    static PrintStream out = System.out;
+
+    static int nextXid = 1;
+
+    public static void main(String[] args) {
+        String bench = (args.length > 0) ? args[0] : "deadlock";
+        if (bench.equals("deadlock")) {
+            deadlock(intArg(args, 1, 20), intArg(args, 2, 16));
+        } else if (bench.equals("fastpath")) {
+            fastPath(intArg(args, 1, 10));
+        } else if (bench.equals("fairness")) {
+            fairness(intArg(args, 1, 10), intArg(args, 2, 8));
+        } else if (bench.equals("waiters")) {
+            waiters(intArg(args, 1, 10000));
+        } else if (bench.equals("xidtable")) {
+            xidTable(intArg(args, 1, 100000));
+        } else {
+            out.println("Unknown benchmark " + bench);
+        }
+    }
+
+    // Booking storm: like WorkflowControllerImpl.reserveItinerary, every
+    // transaction reads and then updates a customer and a few hot flights,
+    // visiting the flights in random order. Compares the deadlock policies.
+    static void deadlock(int seconds, int threads) {
+        String[] names = {"timeout", "waits-for", "wait-die", "wound-wait"};
+        int[] policies = {LockManager.DETECT_TIMEOUT, LockManager.DETECT_WAITS_FOR,
+                LockManager.PREVENT_WAIT_DIE, LockManager.PREVENT_WOUND_WAIT};
+
+        out.println("Booking storm, " + threads + " threads, " + seconds + " s per policy");
+        out.println("policy      committed  aborted  timeouts     tx/s   p50 ms   p99 ms");
+        for (int i = 0; i < policies.length; i++) {
+            LockManager lm = new LockManager(16);
+            lm.setDeadlockPolicy(policies[i]);
+            Storm storm = new Storm(lm, seconds * 1000L, threads);
+            storm.run();
+            out.println(pad(names[i], 12) + pad("" + storm.latencies.size(), 11) + pad("" + storm.aborts, 9)
+                    + pad("" + lm.getTimedOutDeadlocks(), 11) + pad("" + storm.latencies.size() / seconds, 9)
+                    + pad(millis(storm.percentile(50)), 9) + pad(millis(storm.percentile(99)), 9));
+        }
+    }
+
+    // Uncontended lock requests: batches of transactions lock a few items of
+    // their own, lock them again, upgrade them and release them. Reports the
+    // time and the bytes allocated per lock request of each kind.
+    static void fastPath(int seconds) {
+        String[] phases = {"grant", "re-grant", "upgrade", "re-grant W", "unlockAll"};
+        int[] modes = {LockManager.READ, LockManager.READ, LockManager.WRITE, LockManager.WRITE, -1};
+        int batch = 100;
+        int items = 8;
+        String[][] names = new String[batch][items];
+        for (int i = 0; i < batch; i++) {
+            for (int j = 0; j < items; j++) {
+                names[i][j] = "Flights:f" + (i * items + j);
+            }
+        }
+        int[] xids = new int[batch];
+        long[] nanos = new long[phases.length];
+        long[] bytes = new long[phases.length];
+        long ops = 0;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        LockManager lm = new LockManager();
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+        // the first second warms up the JIT
+        long warmup = System.currentTimeMillis() + 1000;
+        long deadline = warmup + seconds * 1000L;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                boolean measure = System.currentTimeMillis() >= warmup;
+                for (int i = 0; i < batch; i++) {
+                    xids[i] = newXid();
+                }
+                for (int p = 0; p < phases.length; p++) {
+                    long allocated = threads.getThreadAllocatedBytes(tid);
+                    long start = System.nanoTime();
+                    for (int i = 0; i < batch; i++) {
+                        if (modes[p] < 0) {
+                            lm.unlockAll(xids[i]);
+                            continue;
+                        }
+                        for (int j = 0; j < items; j++) {
+                            lm.lock(xids[i], names[i][j], modes[p]);
+                        }
+                    }
+                    if (measure) {
+                        nanos[p] += System.nanoTime() - start;
+                        bytes[p] += threads.getThreadAllocatedBytes(tid) - allocated;
+                    }
+                }
+                if (measure) {
+                    ops += batch * items;
+                }
+            }
+        } catch (DeadlockException e) {
+            System.setOut(out);
+            out.println("Unexpected deadlock: " + e.getMessage());
+            return;
+        }
+        System.setOut(out);
+
+        out.println("Uncontended lock requests, " + items + " items per transaction, " + ops + " per kind");
+        out.println("request        ns/op    B/op");
+        for (int p = 0; p < phases.length; p++) {
+            out.println(pad(phases[p], 12) + pad("" + nanos[p] / ops, 9) + pad("" + bytes[p] / ops, 9));
+        }
+    }
+
+    // Read-heavy load: readers keep a hot item READ locked for a millisecond
+    // at a time, so their locks overlap, while a writer asks for a WRITE lock
+    // on it every 20 ms. Reports the time the lock requests waited, fair
+    // against unfair queueing.
+    static void fairness(int seconds, int readers) {
+        out.println("Read-heavy load, " + readers + " readers, 1 writer, " + seconds + " s per mode");
+        out.println("mode       reads/s  read p99 ms  writes  write p50 ms  write p99 ms  write max ms  timeouts");
+        boolean[] modes = {true, false};
+        for (int m = 0; m < modes.length; m++) {
+            final LockManager lm = new LockManager(16);
+            lm.setFair(modes[m]);
+            final long deadline = System.currentTimeMillis() + seconds * 1000L;
+            final Storm reads = new Storm(lm, 0, 0);
+            final Storm writes = new Storm(lm, 0, 0);
+            Thread[] workers = new Thread[readers + 1];
+            System.setOut(new PrintStream(new OutputStream() {
+                public void write(int b) {
+                }
+            }));
+            for (int i = 0; i < workers.length; i++) {
+                final boolean writer = (i == 0);
+                workers[i] = new Thread() {
+                    public void run() {
+                        while (System.currentTimeMillis() < deadline) {
+                            if (writer) {
+                                writes.sleep(20);
+                                writes.access("hot", LockManager.WRITE);
+                            } else {
+                                reads.access("hot", LockManager.READ);
+                            }
+                        }
+                    }
+                };
+                workers[i].start();
+            }
+            for (int i = 0; i < workers.length; i++) {
+                try {
+                    workers[i].join();
+                } catch (InterruptedException e) {
+                }
+            }
+            System.setOut(out);
+            out.println(pad(modes[m] ? "fair" : "unfair", 11) + pad("" + reads.latencies.size() / seconds, 9)
+                    + pad(millis(reads.percentile(99)), 13) + pad("" + writes.latencies.size(), 8)
+                    + pad(millis(writes.percentile(50)), 14) + pad(millis(writes.percentile(99)), 14)
+                    + pad(millis(writes.percentile(100)), 14) + pad("" + writes.aborts, 9));
+        }
+    }
+
+    // Many blocked transactions: one transaction WRITE locks a hot item, the
+    // others each ask for a READ lock on it from a thread of their own, a
+    // virtual thread where the JVM has them. Reports the platform threads it
+    // took and how long it took to grant them all once the item is released.
+    static void waiters(int transactions) {
+        final LockManager lm = new LockManager(16);
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        int before = threads.getThreadCount();
+        final int holder = newXid();
+        final Storm granted = new Storm(lm, 0, 0);
+        Thread[] workers = new Thread[transactions];
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+        boolean virtual = false;
+        try {
+            lm.lock(holder, "hot", LockManager.WRITE);
+            for (int i = 0; i < transactions; i++) {
+                workers[i] = newThread(new Runnable() {
+                    public void run() {
+                        granted.access("hot", LockManager.READ);
+                    }
+                });
+                virtual = !workers[i].getClass().equals(Thread.class);
+                workers[i].start();
+            }
+            // give them time to block
+            Thread.sleep(1000);
+        } catch (Exception e) {
+            System.setOut(out);
+            out.println("Unexpected " + e);
+            return;
+        }
+        long start = System.nanoTime();
+        lm.unlockAll(holder);
+        for (int i = 0; i < transactions; i++) {
+            try {
+                workers[i].join();
+            } catch (InterruptedException e) {
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        System.setOut(out);
+        out.println(transactions + " blocked transactions on " + (virtual ? "virtual" : "platform") + " threads");
+        out.println("granted " + granted.latencies.size() + ", aborted " + granted.aborts + " in " + millis(nanos)
+                + " ms, peak platform threads " + (threads.getPeakThreadCount() - before));
+    }
+
+    // Tables keyed by xid, as the lock table stripes keep them: with 10 to
+    // max active transactions, looks up random active xids and retires the
+    // oldest transaction for a new one (remove and put), IntHashTable
+    // against a HashMap keyed by Integer. Reports the time and the bytes
+    // allocated per operation.
+    static void xidTable(int max) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        int ops = 1 << 20;
+        int[] probes = new int[ops];
+        String[] names = {"IntHashTable", "HashMap"};
+
+        out.println("Tables keyed by xid, " + ops + " operations per size");
+        out.println("active    table         get ns/op  get B/op  remove+put ns/op  remove+put B/op");
+        for (int n = 10; n <= max; n *= 10) {
+            Random random = new Random(n);
+            // the last round is measured, the others warm up the JIT
+            for (int round = 0; round < 5; round++) {
+                for (int impl = 0; impl < names.length; impl++) {
+                    IntHashTable<TimeObj> table = new IntHashTable<TimeObj>();
+                    HashMap<Integer, TimeObj> map = new HashMap<Integer, TimeObj>();
+                    // xids are handed out in order, the oldest ones finish first
+                    int first = random.nextInt(1 << 20);
+                    for (int i = 0; i < ops; i++) {
+                        probes[i] = first + random.nextInt(n);
+                    }
+                    if (impl == 0) {
+                        churn(table, first - n, n);
+                    } else {
+                        churn(map, first - n, n);
+                    }
+
+                    long allocated = threads.getThreadAllocatedBytes(tid);
+                    long start = System.nanoTime();
+                    int found = (impl == 0) ? lookUp(table, probes) : lookUp(map, probes);
+                    long getNanos = System.nanoTime() - start;
+                    long getBytes = threads.getThreadAllocatedBytes(tid) - allocated;
+
+                    allocated = threads.getThreadAllocatedBytes(tid);
+                    start = System.nanoTime();
+                    if (impl == 0) {
+                        churn(table, first, ops);
+                    } else {
+                        churn(map, first, ops);
+                    }
+                    long churnNanos = System.nanoTime() - start;
+                    long churnBytes = threads.getThreadAllocatedBytes(tid) - allocated;
+
+                    if (found != ops) {
+                        out.println("Lost entries: " + (ops - found));
+                    }
+                    if (round == 4) {
+                        out.println(pad("" + n, 10) + pad(names[impl], 14) + pad(nanosPerOp(getNanos, ops), 11)
+                                + pad("" + getBytes / ops, 10) + pad(nanosPerOp(churnNanos, ops), 18)
+                                + pad("" + churnBytes / ops, 9));
+                    }
+                }
+            }
+        }
+    }
+
+    // looks up every xid of probes, returns how many were found
+    static int lookUp(IntHashTable<TimeObj> table, int[] probes) {
+        int found = 0;
+        for (int i = 0; i < probes.length; i++) {
+            if (table.get(probes[i]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    static int lookUp(HashMap<Integer, TimeObj> map, int[] probes) {
+        int found = 0;
+        for (int i = 0; i < probes.length; i++) {
+            if (map.get(new Integer(probes[i])) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    // finishes the transactions from first on, each making room for a new
+    // one n xids later; on an empty table this starts n transactions from
+    // first + n
+    static void churn(IntHashTable<TimeObj> table, int first, int count) {
+        int n = (table.size() == 0) ? count : table.size();
+        TimeObj stamp = new TimeObj(1);
+        for (int xid = first; xid < first + count; xid++) {
+            table.remove(xid);
+            table.put(xid + n, stamp);
+        }
+    }
+
+    static void churn(HashMap<Integer, TimeObj> map, int first, int count) {
+        int n = map.isEmpty() ? count : map.size();
+        TimeObj stamp = new TimeObj(1);
+        for (int xid = first; xid < first + count; xid++) {
+            map.remove(new Integer(xid));
+            map.put(new Integer(xid + n), stamp);
+        }
+    }
+
+    static String nanosPerOp(long nanos, int ops) {
+        return String.valueOf(Math.round(nanos * 10.0 / ops) / 10.0);
+    }
+
+    // returns an unstarted virtual thread running task if the JVM has them
+    // (Java 21 and later), a platform thread otherwise
+    static Thread newThread(Runnable task) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (Thread) Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class)
+                    .invoke(builder, task);
+        } catch (Exception e) {
+            return new Thread(task);
+        }
+    }
+
+    static synchronized int newXid() {
+        return nextXid++;
+    }
+
+    static class Storm {
+        LockManager lm;
+
+        long duration;
+
+        int threads;
+
+        ArrayList<Long> latencies = new ArrayList<Long>();
+
+        int aborts = 0;
+
+        Storm(LockManager lm, long duration, int threads) {
+            this.lm = lm;
+            this.duration = duration;
+            this.threads = threads;
+        }
+
+        void run() {
+            final long deadline = System.currentTimeMillis() + duration;
+            Thread[] workers = new Thread[threads];
+            // the lock manager reports every conflict on stdout
+            System.setOut(new PrintStream(new OutputStream() {
+                public void write(int b) {
+                }
+            }));
+            for (int i = 0; i < threads; i++) {
+                final Random random = new Random(i);
+                workers[i] = new Thread() {
+                    public void run() {
+                        while (System.currentTimeMillis() < deadline) {
+                            book(random, deadline);
+                        }
+                    }
+                };
+                workers[i].start();
+            }
+            for (int i = 0; i < threads; i++) {
+                try {
+                    workers[i].join();
+                } catch (InterruptedException e) {
+                }
+            }
+            System.setOut(out);
+        }
+
+        void book(Random random, long deadline) {
+            String[] items = new String[3];
+            items[0] = "Customers:c" + random.nextInt(100);
+            items[1] = "Flights:f" + random.nextInt(8);
+            do {
+                items[2] = "Flights:f" + random.nextInt(8);
+            } while (items[2].equals(items[1]));
+
+            long start = System.nanoTime();
+            while (System.currentTimeMillis() < deadline) {
+                // a restarted transaction gets a new xid from the TM
+                int xid = newXid();
+                try {
+                    for (int i = 0; i < items.length; i++) {
+                        lm.lock(xid, items[i], LockManager.READ);
+                        Thread.sleep(1);
+                        lm.lock(xid, items[i], LockManager.WRITE);
+                    }
+                    lm.unlockAll(xid);
+                    synchronized (this) {
+                        latencies.add(new Long(System.nanoTime() - start));
+                    }
+                    return;
+                } catch (DeadlockException e) {
+                    lm.unlockAll(xid);
+                    synchronized (this) {
+                        aborts++;
+                    }
+                    // the client needs a round trip to notice the abort
+                    sleep(1);
+                } catch (InterruptedException e) {
+                    lm.unlockAll(xid);
+                    return;
+                }
+            }
+        }
+
+        // locks item for a millisecond in a transaction of its own and
+        // records how long the lock request waited
+        void access(String item, int lockType) {
+            int xid = newXid();
+            long start = System.nanoTime();
+            try {
+                lm.lock(xid, item, lockType);
+                synchronized (this) {
+                    latencies.add(new Long(System.nanoTime() - start));
+                }
+                Thread.sleep(1);
+            } catch (DeadlockException e) {
+                synchronized (this) {
+                    aborts++;
+                }
+            } catch (InterruptedException e) {
+            }
+            lm.unlockAll(xid);
+        }
+
+        void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+            }
+        }
+
+        synchronized long percentile(int p) {
+            if (latencies.isEmpty()) {
+                return 0;
+            }
+            Collections.sort(latencies);
+            int i = (int) Math.ceil(p / 100.0 * latencies.size()) - 1;
+            return latencies.get(Math.max(i, 0)).longValue();
+        }
+    }
+
+    static int intArg(String[] args, int i, int def) {
+        return (args.length > i) ? Integer.parseInt(args[i]) : def;
+    }
+
+    static String millis(long nanos) {
+        return String.valueOf(nanos / 1000000);
+    }
+
+    static String pad(String s, int width) {
+        StringBuffer buf = new StringBuffer(s);
+        while (buf.length() < width) {
+            buf.append(' ');
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,71 @@
+package lockmgr;
+
+/**
+ * Management interface of a LockManager. Each Resource Manager registers its
+ * lock manager as transaction:type=LockManager,name=&lt;RMI name&gt;, so lock
+ * contention can be watched with any JMX client.
+ * <p>
+ * The counters are kept by the lock table stripes under the latch they take
+ * anyway, so keeping them costs a few increments per lock request.
+ */
+public interface LockManagerMXBean {
+    /**
+     * @return the number of new locks granted.
+     */
+    long getGrants();
+
+    /**
+     * @return the number of locks converted to a stronger mode.
+     */
+    long getConversions();
+
+    /**
+     * @return the number of lock requests that had to wait.
+     */
+    long getWaits();
+
+    /**
+     * @return the number of granted lock requests that waited up to each
+     * bound of getWaitTimeBucketMillis(), the last element counting the
+     * longer waits.
+     */
+    long[] getWaitTimeHistogram();
+
+    long[] getWaitTimeBucketMillis();
+
+    long getDetectedDeadlocks();
+
+    double getAverageDetectionLatency();
+
+    long getTimedOutDeadlocks();
+
+    double getAverageTimeoutLatency();
+
+    long getPreventedDeadlocks();
+
+    long getEscalations();
+
+    /**
+     * @return hotItems(10)
+     */
+    String[] getHotItems();
+
+    /**
+     * @return the <tt>n</tt> data items lock requests waited for most often,
+     * e.g. "Flights:f1 12", most contended first. Only the most contended
+     * items of each stripe are tracked, so the counts are lower bounds.
+     */
+    String[] hotItems(int n);
+
+    /**
+     * @return the lock table as LockManager.snapshot().toLines(): the locks
+     * held by each transaction, then the wait queue of each data item with
+     * how long every waiter has been blocked and by whom.
+     */
+    String[] dumpLockTable();
+
+    /**
+     * Sets all statistics back to zero.
+     */
+    void resetStatistics();
+}
@@ -1,6 +1,8 @@
 package lockmgr;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 class LockManagerTest {
 
@@ -9,6 +11,16 @@ class LockManagerTest {
     public static void main(String[] args) {
         test1();
         test2();
+        test3();
+        test4(LockManager.PREVENT_WAIT_DIE, "Wait-die");
+        test4(LockManager.PREVENT_WOUND_WAIT, "Wound-wait");
+        test5();
+        test6();
+        test7();
+        test8();
+        test9();
+        test10();
+        test11();
     }
 
     static void test1() {
@@ -38,13 +50,192 @@ class LockManagerTest {
         }
     }
 
+    static void test3() {
+        System.out.println("Waits-for deadlock detection test");
+        LockManager detecting = new LockManager(4);
+        detecting.setDeadlockPolicy(LockManager.DETECT_WAITS_FOR);
+        Transaction t1 = new Transaction(detecting, 3, "rl a sl 1000 wl b ua");
+        Transaction t2 = new Transaction(detecting, 4, "rl b sl 10 wl a ua");
+        t1.start();
+        t2.start();
+        try {
+            t1.join();
+            t2.join();
+        } catch (Exception e) {
+        }
+        System.out.println("Detected " + detecting.getDetectedDeadlocks() + " deadlock(s), "
+                + detecting.getAverageDetectionLatency() + " ms on average");
+    }
+
+    static void test4(int policy, String name) {
+        System.out.println(name + " deadlock prevention test");
+        LockManager preventing = new LockManager(4);
+        preventing.setDeadlockPolicy(policy);
+        Transaction t1 = new Transaction(preventing, 5, "rl a sl 1000 wl b ua");
+        Transaction t2 = new Transaction(preventing, 6, "rl b sl 10 wl a ua");
+        t1.start();
+        t2.start();
+        try {
+            t1.join();
+            t2.join();
+        } catch (Exception e) {
+        }
+        System.out.println("Prevented " + preventing.getPreventedDeadlocks() + " deadlock(s)");
+    }
+
+    static void test5() {
+        System.out.println("Update lock test");
+        LockManager updating = new LockManager(4);
+        Transaction t1 = new Transaction(updating, 7, "ul a sl 1000 wl a ua");
+        Transaction t2 = new Transaction(updating, 8, "sl 10 ul a wl a ua");
+        Transaction t3 = new Transaction(updating, 9, "sl 20 rl a ua");
+        t1.start();
+        t2.start();
+        t3.start();
+        try {
+            t1.join();
+            t2.join();
+            t3.join();
+        } catch (Exception e) {
+        }
+    }
+
+    static void test6() {
+        System.out.println("Table lock test");
+        LockManager hierarchical = new LockManager(4);
+        Transaction t1 = new Transaction(hierarchical, 10, "tsl Flights sl 1000 ua");
+        Transaction t2 = new Transaction(hierarchical, 11, "sl 10 rwl Flights:f1 ua");
+        Transaction t3 = new Transaction(hierarchical, 12, "sl 20 rrl Flights:f2 ua");
+        t1.start();
+        t2.start();
+        t3.start();
+        try {
+            t1.join();
+            t2.join();
+            t3.join();
+        } catch (Exception e) {
+        }
+    }
+
+    static void test7() {
+        System.out.println("Lock escalation test");
+        LockManager escalating = new LockManager(4);
+        escalating.setEscalationThreshold(3);
+        Transaction t1 = new Transaction(escalating, 13, "rrl Cars:c1 rrl Cars:c2 rrl Cars:c3 sl 1000 ua");
+        Transaction t2 = new Transaction(escalating, 14, "sl 500 rwl Cars:c9 ua");
+        t1.start();
+        t2.start();
+        try {
+            t1.join();
+            t2.join();
+        } catch (Exception e) {
+        }
+        System.out.println("Escalated " + escalating.getEscalations() + " time(s)");
+    }
+
+    static void test8() {
+        System.out.println("Batch lock test");
+        LockManager batching = new LockManager(4);
+        Transaction t1 = new Transaction(batching, 15, "bwl Flights:f1,Flights:f2 sl 500 ua");
+        Transaction t2 = new Transaction(batching, 16, "bwl Flights:f2,Flights:f1 sl 500 ua");
+        t1.start();
+        t2.start();
+        try {
+            t1.join();
+            t2.join();
+        } catch (Exception e) {
+        }
+    }
+
+    static void test9() {
+        System.out.println("Fair queue test");
+        LockManager fair = new LockManager(4);
+        Transaction t1 = new Transaction(fair, 17, "rl a sl 300 ua");
+        Transaction t2 = new Transaction(fair, 18, "sl 50 wl a ua");
+        Transaction t3 = new Transaction(fair, 19, "sl 100 rl a ua");
+        t1.start();
+        t2.start();
+        t3.start();
+        try {
+            t1.join();
+            t2.join();
+            t3.join();
+        } catch (Exception e) {
+        }
+        System.out.println(fair.getWaits() + " request(s) waited, most for " + fair.getHotItems()[0]);
+    }
+
+    static void test10() {
+        System.out.println("Asynchronous lock test");
+        LockManager async = new LockManager(4);
+        async.setDeadlockPolicy(LockManager.DETECT_WAITS_FOR);
+        Transaction t1 = new Transaction(async, 20, "rwl Cars:c1 sl 300 rwl Cars:c2 ua");
+        t1.start();
+        try {
+            Thread.sleep(100);
+            async.lock(21, Transaction.rowKey("Cars:c2"), LockManager.WRITE);
+            CompletableFuture<Boolean> future = async.lockAsync(21, Transaction.rowKey("Cars:c1"), LockManager.WRITE);
+            System.out.println("Transaction 21 queued for wl(Cars:c1), done " + future.isDone());
+            future.get();
+            System.out.println("Transaction 21 got wl(Cars:c1)");
+        } catch (ExecutionException e) {
+            System.out.println("Transaction 21: " + e.getCause().getMessage());
+        } catch (Exception e) {
+        }
+        async.unlockAll(21);
+        try {
+            t1.join();
+            CompletableFuture<Boolean> future = async.lockAsync(22, Transaction.rowKey("Cars:c1"), LockManager.WRITE);
+            System.out.println("Transaction 22 asked for wl(Cars:c1), done " + future.isDone());
+        } catch (Exception e) {
+        }
+        async.unlockAll(22);
+    }
+
+    static void test11() {
+        System.out.println("Lock table snapshot test");
+        LockManager dump = new LockManager(4);
+        Transaction t1 = new Transaction(dump, 23, "rwl Rooms:r1 rl b sl 300 ua");
+        Transaction t2 = new Transaction(dump, 24, "sl 50 rrl Rooms:r1 ua");
+        Transaction t3 = new Transaction(dump, 25, "sl 100 wl b ua");
+        t1.start();
+        t2.start();
+        t3.start();
+        try {
+            Thread.sleep(200);
+            Map<String, List<LockTableSnapshot.Waiter>> queues = dump.snapshot().getWaitQueues();
+            for (Iterator<Map.Entry<String, List<LockTableSnapshot.Waiter>>> iter = queues.entrySet().iterator(); iter.hasNext(); ) {
+                Map.Entry<String, List<LockTableSnapshot.Waiter>> entry = iter.next();
+                LockTableSnapshot.Waiter waiter = entry.getValue().get(0);
+                System.out.println(entry.getKey() + ": transaction " + waiter.getXId() + " waits for "
+                        + waiter.getBlockers()[0]);
+            }
+            String[] lines = dump.dumpLockTable();
+            for (int i = 0; i < lines.length; i++) {
+                System.out.println(lines[i]);
+            }
+            t1.join();
+            t2.join();
+            t3.join();
+        } catch (Exception e) {
+        }
+        System.out.println(dump.snapshot().getHeldLocks().size() + " transaction(s) hold locks");
+    }
+
     static class Transaction extends Thread {
 
+        LockManager lm;
+
         int xid;
 
         StringTokenizer st;
 
         public Transaction(int xid, String ops) {
+            this(LockManagerTest.lm, xid, ops);
+        }
+
+        public Transaction(LockManager lm, int xid, String ops) {
+            this.lm = lm;
             this.xid = xid;
             st = new StringTokenizer(ops);
         }
@@ -58,10 +249,35 @@ class LockManagerTest {
                         String param = st.nextToken();
                         lm.lock(xid, param, LockManager.READ);
                         System.out.println("Transaction " + xid + " got rl(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("ul")) {
+                        String param = st.nextToken();
+                        lm.lock(xid, param, LockManager.UPDATE);
+                        System.out.println("Transaction " + xid + " got ul(" + param + ")");
                     } else if (opcode.equalsIgnoreCase("wl")) {
                         String param = st.nextToken();
                         lm.lock(xid, param, LockManager.WRITE);
                         System.out.println("Transaction " + xid + " got wl(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("tsl")) {
+                        String param = st.nextToken();
+                        lm.lock(xid, LockKey.table(LockKey.tableId(param)), LockManager.READ);
+                        System.out.println("Transaction " + xid + " got tsl(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("rrl")) {
+                        String param = st.nextToken();
+                        lm.lock(xid, rowKey(param), LockManager.READ);
+                        System.out.println("Transaction " + xid + " got rrl(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("rwl")) {
+                        String param = st.nextToken();
+                        lm.lock(xid, rowKey(param), LockManager.WRITE);
+                        System.out.println("Transaction " + xid + " got rwl(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("bwl")) {
+                        String param = st.nextToken();
+                        StringTokenizer items = new StringTokenizer(param, ",");
+                        LockKey[] keys = new LockKey[items.countTokens()];
+                        for (int i = 0; i < keys.length; i++) {
+                            keys[i] = rowKey(items.nextToken());
+                        }
+                        lm.lockAll(xid, keys, LockManager.WRITE);
+                        System.out.println("Transaction " + xid + " got bwl(" + param + ")");
                     } else if (opcode.equalsIgnoreCase("ua")) {
                         lm.unlockAll(xid);
                     } else if (opcode.equalsIgnoreCase("sl")) {
@@ -82,5 +298,11 @@ class LockManagerTest {
                 lm.unlockAll(xid);
             }
         }
+
+        // "Table:key"
+        static LockKey rowKey(String param) {
+            int colon = param.indexOf(':');
+            return new LockKey(LockKey.tableId(param.substring(0, colon)), param.substring(colon + 1));
+        }
     }
 }
\ No newline at end of file
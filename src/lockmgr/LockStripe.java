@@ -0,0 +1,685 @@
+package lockmgr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One stripe of the lock table. A stripe owns its own lock, timestamp and
+ * wait tables, so lock requests on data items that hash to different stripes
+ * never contend on the same latch.
+ * <p>
+ * The lock table maps each data item, a String or a LockKey, to the DataObj
+ * of the locks granted on it. The same DataObj is indexed by transaction and the waiters are queued
+ * by data item, so releasing the locks of a transaction only touches what it
+ * holds and what waits for it. A lock request that does not conflict is
+ * granted under the latch without logging; released entries are
+ * pooled, so a transaction that relocks or upgrades its items allocates
+ * nothing.
+ * <p>
+ * A blocked request waits in the FIFO queue of its data item. Whoever
+ * releases a lock grants the item to the waiters at the head of the queue
+ * that fit and unparks only them, so a woken thread already holds its lock.
+ * If the lock manager is fair, a new request also queues up behind the
+ * waiters it conflicts with, so a stream of readers cannot starve a writer.
+ * <p>
+ * The latch is a ReentrantLock rather than a monitor and waiting threads
+ * park, so a virtual thread contending for the latch or blocked on a lock
+ * never pins its carrier thread.
+ */
+class LockStripe {
+    // number of released entries and lists kept for reuse
+    private static final int POOL_SIZE = 1024;
+
+    // number of data items whose waits are counted
+    private static final int HOT_ITEMS = 1024;
+
+    // guards everything below
+    private final ReentrantLock latch = new ReentrantLock();
+
+    // data item -> DataObj of every lock granted on it
+    private HashMap<Object, ArrayList<DataObj>> lockTable;
+
+    // xid -> TimeObj of its oldest lock request blocked in this stripe
+    private IntHashTable<TimeObj> stampTable;
+
+    // xid -> DataObj of every lock it holds in this stripe
+    private IntHashTable<ArrayList<DataObj>> heldLocks;
+
+    private ArrayList<DataObj> freeLocks = new ArrayList<DataObj>(POOL_SIZE);
+
+    private ArrayList<ArrayList<DataObj>> freeLists = new ArrayList<ArrayList<DataObj>>(POOL_SIZE);
+
+    // data item -> WaitObj of the transactions blocked on it, conversions
+    // first, then oldest first
+    private HashMap<Object, ArrayList<WaitObj>> waitQueues = new HashMap<Object, ArrayList<WaitObj>>();
+
+    // statistics: new locks granted, conversions granted, requests that had
+    // to wait, and the wait times of the granted ones by
+    // LockManager.WAIT_BUCKET_MILLIS
+    private long grants = 0;
+
+    private long conversions = 0;
+
+    private long waits = 0;
+
+    private long[] waitHistogram = new long[LockManager.WAIT_BUCKET_MILLIS.length + 1];
+
+    // data item -> number of requests that waited for it, of at most
+    // HOT_ITEMS items
+    private HashMap<Object, long[]> contention = new HashMap<Object, long[]>();
+
+    LockStripe(int tableSize) {
+        lockTable = new HashMap<Object, ArrayList<DataObj>>(tableSize);
+        stampTable = new IntHashTable<TimeObj>();
+        heldLocks = new IntHashTable<ArrayList<DataObj>>(tableSize);
+    }
+
+    boolean lock(int xid, Object item, int lockType, LockManager lm) throws DeadlockException {
+        WaitObj waitObj;
+        this.latch.lock();
+        try {
+            // no lock conflict, the common case
+            if (grant(xid, item, lockType, lm, lm.isFair())) {
+                return true;
+            }
+            // we wait for the mode we are converting to, which for an
+            // intention lock may be stronger than the one asked for
+            int held = heldMode(xid, item);
+            if (held >= 0) {
+                lockType = LockManager.upgrade(held, lockType);
+            }
+            waitObj = new WaitObj(xid, item, lockType, Thread.currentThread());
+            enqueue(waitObj, held >= 0);
+        } finally {
+            this.latch.unlock();
+        }
+
+        // lock conflict exists, wait until the lock is handed to us or a
+        // deadlock is detected
+        if (lockType == LockManager.READ) {
+            System.out.println("Want READ, someone has WRITE");
+        } else if (lockType == LockManager.UPDATE) {
+            System.out.println("Want UPDATE, someone has UPDATE or WRITE");
+        } else if (lockType == LockManager.WRITE) {
+            System.out.println("Want WRITE, someone has READ or WRITE");
+        } else {
+            System.out.println("Want " + LockManager.modeName(lockType) + " on " + item
+                    + ", someone has a conflicting lock");
+        }
+        waitLock(waitObj, lm);
+        lm.stopWaiting(xid);
+        return true;
+    }
+
+    // like lock(), but a request that has to wait is queued and the future
+    // of its WaitObj returned, for handOff() to complete
+    CompletableFuture<Boolean> lockAsync(int xid, Object item, int lockType, LockManager lm) {
+        WaitObj waitObj;
+        int[] holders = null;
+        this.latch.lock();
+        try {
+            if (grant(xid, item, lockType, lm, lm.isFair())) {
+                return CompletableFuture.completedFuture(Boolean.TRUE);
+            }
+            int held = heldMode(xid, item);
+            if (held >= 0) {
+                lockType = LockManager.upgrade(held, lockType);
+            }
+            waitObj = new WaitObj(xid, item, lockType, null);
+            waitObj.future = new CompletableFuture<Boolean>();
+            enqueue(waitObj, held >= 0);
+            if (lm.getDeadlockPolicy() != LockManager.DETECT_TIMEOUT) {
+                holders = conflictingXIds(waitObj, lm.isFair());
+            }
+        } finally {
+            this.latch.unlock();
+        }
+
+        if (holders != null) {
+            String reason = lm.waiting(xid, holders, waitObj);
+            if (reason != null) {
+                abandon(waitObj, lm, reason);
+                return waitObj.future;
+            }
+        }
+        lm.startTimeout(waitObj);
+        return waitObj.future;
+    }
+
+    // gives up the asynchronous request of waitObj unless it has been
+    // granted already, failing its future with msg. Returns true if it was
+    // given up.
+    boolean abandon(WaitObj waitObj, LockManager lm, String msg) {
+        this.latch.lock();
+        try {
+            if (waitObj.isGranted() || !dequeue(waitObj)) {
+                // granted, or given up already
+                return false;
+            }
+            // the waiters behind us may go ahead now
+            handOff(waitObj.item(), lm);
+        } finally {
+            this.latch.unlock();
+        }
+        if (waitObj.timeout != null) {
+            waitObj.timeout.cancel(false);
+        }
+        lm.stopWaiting(waitObj.getXId());
+        waitObj.future.completeExceptionally(new DeadlockException(waitObj.getXId(), msg));
+        return true;
+    }
+
+    // grants the lock unless some other transaction holds a lock on the data
+    // item that conflicts with it, or, with behindWaiters, waits for one.
+    // Handles a new lock, a conversion to a stronger mode and a redundant
+    // request for a lock xid already holds; returns false on a conflict. The
+    // caller holds the latch.
+    private boolean grant(int xid, Object item, int lockType, LockManager lm, boolean behindWaiters) {
+        ArrayList<DataObj> locks = this.lockTable.get(item);
+        DataObj own = null;
+        for (int i = 0; locks != null && i < locks.size(); i++) {
+            if (locks.get(i).getXId() == xid) {
+                own = locks.get(i);
+            }
+        }
+        if (own != null) {
+            if (LockManager.covers(own.getLockType(), lockType)) {
+                // redundant lock request, nothing changes
+                return true;
+            }
+            // lock conversion, e.g. READ and INTENTION_WRITE make
+            // READ_INTENTION_WRITE
+            lockType = LockManager.upgrade(own.getLockType(), lockType);
+        } else if (behindWaiters && queuedConflict(xid, item, lockType)) {
+            // a new request does not overtake a waiter it conflicts with
+            return false;
+        }
+        for (int i = 0; locks != null && i < locks.size(); i++) {
+            DataObj dataObj = locks.get(i);
+            if (dataObj != own && LockManager.conflicts(dataObj.getLockType(), lockType)) {
+                return false;
+            }
+        }
+
+        if (own != null) {
+            // the entry is shared with heldLocks
+            own.setLockType(lockType);
+            this.conversions++;
+        } else {
+            if (locks == null) {
+                locks = newList();
+                this.lockTable.put(item, locks);
+            }
+            own = newLock(xid, item, lockType);
+            locks.add(own);
+            heldBy(xid).add(own);
+            this.grants++;
+        }
+
+        if (lm.getDeadlockPolicy() != LockManager.DETECT_TIMEOUT) {
+            // transactions already waiting on this data item now wait for us
+            // as well
+            newHolder(own, item, lm);
+        }
+        return true;
+    }
+
+    // grants the lock if that can be done without waiting, returns false
+    // otherwise.
+    boolean tryLock(int xid, Object item, int lockType, LockManager lm) {
+        this.latch.lock();
+        try {
+            return grant(xid, item, lockType, lm, lm.isFair());
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // adds a row to the count of rows xid locked under its lock on the table
+    // item and returns the new count, 0 if xid holds no lock on item.
+    int countRow(int xid, Object item) {
+        this.latch.lock();
+        try {
+            ArrayList<DataObj> locks = this.lockTable.get(item);
+            for (int i = 0; locks != null && i < locks.size(); i++) {
+                if (locks.get(i).getXId() == xid) {
+                    return ++locks.get(i).rows;
+                }
+            }
+            return 0;
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // returns true if a transaction other than xid waits for a lock on item
+    // that conflicts with lockType. The caller holds the latch.
+    private boolean queuedConflict(int xid, Object item, int lockType) {
+        ArrayList<WaitObj> queue = this.waitQueues.get(item);
+        for (int i = 0; queue != null && i < queue.size(); i++) {
+            WaitObj waitObj = queue.get(i);
+            if (waitObj.getXId() != xid && (LockManager.conflicts(waitObj.getLockType(), lockType)
+                    || LockManager.conflicts(lockType, waitObj.getLockType()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // returns the mode xid holds on item, or -1. The caller holds the latch.
+    private int heldMode(int xid, Object item) {
+        ArrayList<DataObj> locks = this.lockTable.get(item);
+        for (int i = 0; locks != null && i < locks.size(); i++) {
+            if (locks.get(i).getXId() == xid) {
+                return locks.get(i).getLockType();
+            }
+        }
+        return -1;
+    }
+
+    // the mode xid holds on item, or -1
+    int lockMode(int xid, Object item) {
+        this.latch.lock();
+        try {
+            return heldMode(xid, item);
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // returns the heldLocks entry of xid, creating it if needed.
+    private ArrayList<DataObj> heldBy(int xid) {
+        ArrayList<DataObj> held = this.heldLocks.get(xid);
+        if (held == null) {
+            held = newList();
+            this.heldLocks.put(xid, held);
+        }
+        return held;
+    }
+
+    private DataObj newLock(int xid, Object item, int lockType) {
+        DataObj dataObj;
+        if (this.freeLocks.isEmpty()) {
+            dataObj = new DataObj();
+        } else {
+            dataObj = this.freeLocks.remove(this.freeLocks.size() - 1);
+        }
+        dataObj.reset(xid, item, lockType);
+        return dataObj;
+    }
+
+    private ArrayList<DataObj> newList() {
+        if (this.freeLists.isEmpty()) {
+            return new ArrayList<DataObj>();
+        }
+        return this.freeLists.remove(this.freeLists.size() - 1);
+    }
+
+    private void freeList(ArrayList<DataObj> list) {
+        list.clear();
+        if (this.freeLists.size() < POOL_SIZE) {
+            this.freeLists.add(list);
+        }
+    }
+
+    // unlocks every data item of this stripe locked on behalf of xid and
+    // hands them to the transactions waiting on them.
+    void unlockAll(int xid, LockManager lm) {
+        this.latch.lock();
+        try {
+            ArrayList<DataObj> held = this.heldLocks.remove(xid);
+            if (held == null) {
+                return;
+            }
+
+            for (int i = (held.size() - 1); i >= 0; i--) {
+                release(held.get(i), lm);
+            }
+            freeList(held);
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // unlocks the rows of table locked on behalf of xid, which now holds a
+    // lock on the table itself that covers them.
+    void unlockRows(int xid, int table, LockManager lm) {
+        this.latch.lock();
+        try {
+            ArrayList<DataObj> held = this.heldLocks.get(xid);
+            for (int i = (held == null) ? -1 : (held.size() - 1); i >= 0; i--) {
+                Object item = held.get(i).item();
+                if (item instanceof LockKey && ((LockKey) item).getTable() == table && !((LockKey) item).isTable()) {
+                    release(held.remove(i), lm);
+                }
+            }
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // removes dataObj, already taken out of heldLocks, from the lock table
+    // and hands the data item to the transactions waiting for it. The
+    // caller holds the latch.
+    private void release(DataObj dataObj, LockManager lm) {
+        Object item = dataObj.item();
+        ArrayList<DataObj> locks = this.lockTable.get(item);
+        locks.remove(dataObj);
+        if (locks.isEmpty()) {
+            this.lockTable.remove(item);
+            freeList(locks);
+        }
+
+        // the waiters it blocked may go ahead now
+        handOff(item, lm);
+
+        if (this.freeLocks.size() < POOL_SIZE) {
+            this.freeLocks.add(dataObj);
+        }
+    }
+
+    // grants the lock to the waiters at the head of the queue of item that
+    // no longer conflict with the holders, and wakes them up. With fairness
+    // the first waiter that still conflicts ends the handoff, nobody behind
+    // it may overtake it; without, every waiter that fits gets its lock. The
+    // caller holds the latch.
+    private void handOff(Object item, LockManager lm) {
+        ArrayList<WaitObj> queue = this.waitQueues.get(item);
+        if (queue == null) {
+            return;
+        }
+        boolean fair = lm.isFair();
+        for (int i = 0; i < queue.size(); ) {
+            WaitObj waitObj = queue.get(i);
+            if (!grant(waitObj.getXId(), item, waitObj.getLockType(), lm, false)) {
+                if (fair) {
+                    break;
+                }
+                i++;
+                continue;
+            }
+            queue.remove(i);
+            waitObj.setGranted();
+            recordWait(System.nanoTime() - waitObj.since);
+            if (waitObj.future != null) {
+                lm.granted(waitObj);
+            } else {
+                LockSupport.unpark(waitObj.getThread());
+            }
+        }
+        if (queue.isEmpty()) {
+            this.waitQueues.remove(item);
+        }
+    }
+
+    // returns the xids of the other transactions holding locks that conflict
+    // with the lock request of waitObj and, with fairness, of those queued
+    // ahead of it with a conflicting request, as they get the item first.
+    // The caller holds the latch.
+    private int[] conflictingXIds(WaitObj waitObj, boolean fair) {
+        ArrayList<DataObj> locks = this.lockTable.get(waitObj.item());
+        ArrayList<DataObj> holders = new ArrayList<DataObj>();
+        for (int i = 0; locks != null && i < locks.size(); i++) {
+            DataObj dataObj2 = locks.get(i);
+            if (dataObj2.getXId() != waitObj.getXId()
+                    && LockManager.conflicts(dataObj2.getLockType(), waitObj.getLockType())) {
+                holders.add(dataObj2);
+            }
+        }
+        ArrayList<WaitObj> queue = this.waitQueues.get(waitObj.item());
+        for (int i = 0; fair && queue != null && i < queue.size() && queue.get(i) != waitObj; i++) {
+            WaitObj ahead = queue.get(i);
+            if (ahead.getXId() != waitObj.getXId()
+                    && (LockManager.conflicts(ahead.getLockType(), waitObj.getLockType())
+                    || LockManager.conflicts(waitObj.getLockType(), ahead.getLockType()))) {
+                holders.add(ahead);
+            }
+        }
+        int[] xids = new int[holders.size()];
+        for (int i = 0; i < xids.length; i++) {
+            xids[i] = holders.get(i).getXId();
+        }
+        return xids;
+    }
+
+    // tells the lock manager about every waiter on item that conflicts
+    // with the lock just granted to dataObj's transaction. The caller holds
+    // the latch.
+    private void newHolder(DataObj dataObj, Object item, LockManager lm) {
+        ArrayList<WaitObj> queue = this.waitQueues.get(item);
+        for (int i = 0; queue != null && i < queue.size(); i++) {
+            WaitObj waitObj = queue.get(i);
+            if (waitObj.getXId() != dataObj.getXId()
+                    && LockManager.conflicts(dataObj.getLockType(), waitObj.getLockType())) {
+                lm.newHolder(waitObj.getXId(), dataObj.getXId());
+            }
+        }
+    }
+
+    // number of locks held by xid in this stripe
+    int lockCount(int xid) {
+        this.latch.lock();
+        try {
+            ArrayList<DataObj> held = this.heldLocks.get(xid);
+            return (held == null) ? 0 : held.size();
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // queues waitObj for its data item. A conversion goes ahead of the new
+    // requests, which could not be granted before it anyway. The caller
+    // holds the latch.
+    private void enqueue(WaitObj waitObj, boolean converting) {
+        ArrayList<WaitObj> queue = this.waitQueues.get(waitObj.item());
+        if (queue == null) {
+            queue = new ArrayList<WaitObj>();
+            this.waitQueues.put(waitObj.item(), queue);
+        }
+        int i = queue.size();
+        if (converting) {
+            waitObj.setConverting();
+            for (i = 0; i < queue.size() && queue.get(i).isConverting(); i++) {
+            }
+        }
+        queue.add(i, waitObj);
+
+        this.waits++;
+        long[] count = this.contention.get(waitObj.item());
+        if (count == null) {
+            if (this.contention.size() >= HOT_ITEMS) {
+                evictColdItems();
+            }
+            count = new long[1];
+            this.contention.put(waitObj.item(), count);
+        }
+        count[0]++;
+    }
+
+    // makes room in contention: subtracts the smallest count from every
+    // item and forgets those that drop to zero, so the items waited for
+    // most often stay. The caller holds the latch.
+    private void evictColdItems() {
+        long min = Long.MAX_VALUE;
+        for (Iterator<long[]> iter = this.contention.values().iterator(); iter.hasNext(); ) {
+            min = Math.min(min, iter.next()[0]);
+        }
+        for (Iterator<long[]> iter = this.contention.values().iterator(); iter.hasNext(); ) {
+            long[] count = iter.next();
+            count[0] -= min;
+            if (count[0] <= 0) {
+                iter.remove();
+            }
+        }
+    }
+
+    // adds a granted wait of nanos to the histogram. The caller holds the
+    // latch.
+    private void recordWait(long nanos) {
+        long millis = nanos / 1000000;
+        int i = 0;
+        while (i < LockManager.WAIT_BUCKET_MILLIS.length && millis > LockManager.WAIT_BUCKET_MILLIS[i]) {
+            i++;
+        }
+        this.waitHistogram[i]++;
+    }
+
+    // adds the statistics of this stripe to counters (grants, conversions,
+    // waits) and to histogram and contention unless they are null, then
+    // clears them if reset is set.
+    void collectStatistics(long[] counters, long[] histogram, HashMap<Object, long[]> contention, boolean reset) {
+        this.latch.lock();
+        try {
+            counters[0] += this.grants;
+            counters[1] += this.conversions;
+            counters[2] += this.waits;
+            for (int i = 0; histogram != null && i < histogram.length; i++) {
+                histogram[i] += this.waitHistogram[i];
+            }
+            if (contention != null) {
+                for (Iterator<Map.Entry<Object, long[]>> iter = this.contention.entrySet().iterator(); iter.hasNext(); ) {
+                    Map.Entry<Object, long[]> entry = iter.next();
+                    contention.put(entry.getKey(), new long[]{entry.getValue()[0]});
+                }
+            }
+            if (reset) {
+                this.grants = 0;
+                this.conversions = 0;
+                this.waits = 0;
+                this.waitHistogram = new long[this.waitHistogram.length];
+                this.contention.clear();
+            }
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // the latch, for LockManager.snapshot() to hold every stripe still at
+    // once
+    ReentrantLock latch() {
+        return this.latch;
+    }
+
+    // copies the locks and wait queues of this stripe into snapshot. The
+    // caller holds the latch.
+    void snapshot(LockTableSnapshot snapshot, boolean fair, long now) {
+        for (Iterator<ArrayList<DataObj>> iter = this.lockTable.values().iterator(); iter.hasNext(); ) {
+            ArrayList<DataObj> locks = iter.next();
+            for (int i = 0; i < locks.size(); i++) {
+                DataObj dataObj = locks.get(i);
+                snapshot.addLock(dataObj.getXId(), dataObj.item(), dataObj.getLockType());
+            }
+        }
+        for (Iterator<ArrayList<WaitObj>> iter = this.waitQueues.values().iterator(); iter.hasNext(); ) {
+            ArrayList<WaitObj> queue = iter.next();
+            for (int i = 0; i < queue.size(); i++) {
+                WaitObj waitObj = queue.get(i);
+                snapshot.addWaiter(waitObj.getXId(), waitObj.item(), waitObj.getLockType(), waitObj.isConverting(),
+                        (now - waitObj.since) / 1000000, conflictingXIds(waitObj, fair));
+            }
+        }
+    }
+
+    // parks the thread until the lock of waitObj has been handed to it by
+    // handOff(), or a deadlock is detected
+    private void waitLock(WaitObj waitObj, LockManager lm) throws DeadlockException {
+        int xid = waitObj.getXId();
+        TimeObj timestamp = new TimeObj(xid);
+        int[] holders = null;
+        this.latch.lock();
+        try {
+            // add the time stamp for this lock request to stampTable, unless
+            // another thread of the transaction has been blocked for longer
+            if (!this.stampTable.containsKey(xid)) {
+                this.stampTable.put(xid, timestamp);
+            }
+            if (lm.getDeadlockPolicy() != LockManager.DETECT_TIMEOUT && !waitObj.isGranted()) {
+                // find whom we wait for; a lock granted from here on reports
+                // us through newHolder()
+                holders = conflictingXIds(waitObj, lm.isFair());
+            }
+        } finally {
+            this.latch.unlock();
+        }
+
+        if (holders != null) {
+            // check the waits-for graph or the wait-die / wound-wait rules
+            // before going to sleep
+            String reason = lm.waiting(xid, holders, Thread.currentThread());
+            if (reason != null) {
+                cleanupDeadlock(timestamp, waitObj, lm, reason);
+            }
+        }
+
+        // a handoff or a victim mark from here on unparks us, also if it
+        // comes before we park
+        while (!waitObj.isGranted()) {
+            if (lm.isVictim(xid)) {
+                // some other transaction closed a waits-for cycle and picked
+                // us, or wounded us
+                cleanupDeadlock(timestamp, waitObj, lm, "Chosen as deadlock victim.");
+            }
+            long timeBlocked = new TimeObj(xid).getTime() - timestamp.getTime();
+            if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
+                // the transaction has been waiting for a period greater
+                // than the timeout period
+                lm.recordTimeout(timeBlocked);
+                cleanupDeadlock(timestamp, waitObj, lm, "Sleep timeout...deadlock.");
+            }
+            LockSupport.parkNanos(this, (LockManager.DEADLOCK_TIMEOUT - timeBlocked) * 1000000L);
+            if (Thread.interrupted()) {
+                System.out.println("Thread interrupted?");
+            }
+        }
+        this.latch.lock();
+        try {
+            // remove the timestamp for this lock request
+            this.stampTable.remove(xid, timestamp);
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // cleanupDeadlock cleans up stampTable, the wait queue and the waits-for
+    // graph, and throws DeadlockException. A lock handed to us in the
+    // meantime is kept until the transaction aborts.
+    private void cleanupDeadlock(TimeObj tmObj, WaitObj waitObj, LockManager lm, String msg)
+            throws DeadlockException {
+        this.latch.lock();
+        try {
+            this.stampTable.remove(waitObj.getXId(), tmObj);
+            if (!waitObj.isGranted()) {
+                dequeue(waitObj);
+                // the waiters behind us may go ahead now
+                handOff(waitObj.item(), lm);
+            }
+        } finally {
+            this.latch.unlock();
+        }
+        lm.stopWaiting(waitObj.getXId());
+        throw new DeadlockException(waitObj.getXId(), msg);
+    }
+
+    // removes waitObj from the queue of its data item, and the queue once it
+    // is empty. Returns false if it was not queued. The caller holds the
+    // latch.
+    private boolean dequeue(WaitObj waitObj) {
+        ArrayList<WaitObj> queue = this.waitQueues.get(waitObj.item());
+        for (int i = 0; queue != null && i < queue.size(); i++) {
+            if (queue.get(i) == waitObj) {
+                queue.remove(i);
+                if (queue.isEmpty()) {
+                    this.waitQueues.remove(waitObj.item());
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,238 @@
+package lockmgr;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Copy of the lock table of a LockManager at one point in time, see
+ * LockManager.snapshot(): the locks each transaction holds and, per data
+ * item, the queue of the requests waiting for it together with how long they
+ * have waited and whom they wait for.
+ * <p>
+ * A snapshot is serializable, so a Resource Manager can hand it out over
+ * RMI; data items are named by their toString().
+ */
+public class LockTableSnapshot implements Serializable {
+    /**
+     * A lock held by a transaction.
+     */
+    public static class Lock implements Serializable {
+        private int xid;
+
+        private int lockType;
+
+        private String item;
+
+        // the data item until seal() names it, not sent over the wire
+        private transient Object rawItem;
+
+        Lock(int xid, Object item, int lockType) {
+            this.xid = xid;
+            this.rawItem = item;
+            this.lockType = lockType;
+        }
+
+        public int getXId() {
+            return this.xid;
+        }
+
+        public String getItem() {
+            return this.item;
+        }
+
+        public int getLockType() {
+            return this.lockType;
+        }
+
+        void seal() {
+            this.item = String.valueOf(this.rawItem);
+            this.rawItem = null;
+        }
+
+        public String toString() {
+            return this.item + " " + LockManager.modeName(this.lockType);
+        }
+    }
+
+    /**
+     * A blocked lock request; the mode is the one it waits for, which for a
+     * conversion covers the mode held already.
+     */
+    public static class Waiter extends Lock {
+        private boolean converting;
+
+        private long waitedMillis;
+
+        private int[] blockers;
+
+        Waiter(int xid, Object item, int lockType, boolean converting, long waitedMillis, int[] blockers) {
+            super(xid, item, lockType);
+            this.converting = converting;
+            this.waitedMillis = waitedMillis;
+            this.blockers = blockers;
+        }
+
+        public boolean isConverting() {
+            return this.converting;
+        }
+
+        /**
+         * @return the time the request has been blocked, in milliseconds.
+         */
+        public long getWaitedMillis() {
+            return this.waitedMillis;
+        }
+
+        /**
+         * @return the xids of the transactions holding a conflicting lock on
+         * the item and, with a fair lock manager, of those queued ahead with
+         * a conflicting request.
+         */
+        public int[] getBlockers() {
+            return (int[]) this.blockers.clone();
+        }
+
+        public String toString() {
+            StringBuffer sb = new StringBuffer();
+            sb.append(this.getXId()).append(' ').append(LockManager.modeName(this.getLockType()));
+            if (this.converting) {
+                sb.append(" (converting)");
+            }
+            sb.append(" waiting ").append(this.waitedMillis).append(" ms for");
+            for (int i = 0; i < this.blockers.length; i++) {
+                sb.append((i == 0) ? " " : ",").append(this.blockers[i]);
+            }
+            if (this.blockers.length == 0) {
+                sb.append(" nobody");
+            }
+            return sb.toString();
+        }
+    }
+
+    private long takenAt = System.currentTimeMillis();
+
+    private ArrayList<Lock> locks = new ArrayList<Lock>();
+
+    // the waiters of each queue in queue order, queues of different items
+    // one after the other
+    private ArrayList<Waiter> waiters = new ArrayList<Waiter>();
+
+    LockTableSnapshot() {
+    }
+
+    void addLock(int xid, Object item, int lockType) {
+        this.locks.add(new Lock(xid, item, lockType));
+    }
+
+    void addWaiter(int xid, Object item, int lockType, boolean converting, long waitedMillis, int[] blockers) {
+        this.waiters.add(new Waiter(xid, item, lockType, converting, waitedMillis, blockers));
+    }
+
+    // names the data items, after the lock table has been let go
+    void seal() {
+        for (int i = 0; i < this.locks.size(); i++) {
+            this.locks.get(i).seal();
+        }
+        for (int i = 0; i < this.waiters.size(); i++) {
+            this.waiters.get(i).seal();
+        }
+        Collections.sort(this.locks, new Comparator<Lock>() {
+            public int compare(Lock a, Lock b) {
+                if (a.getXId() != b.getXId()) {
+                    return (a.getXId() < b.getXId()) ? -1 : 1;
+                }
+                return a.getItem().compareTo(b.getItem());
+            }
+        });
+    }
+
+    /**
+     * @return the System.currentTimeMillis() at which the snapshot was
+     * taken.
+     */
+    public long getTakenAt() {
+        return this.takenAt;
+    }
+
+    /**
+     * @return the locks held, by xid in ascending order.
+     */
+    public Map<Integer, List<Lock>> getHeldLocks() {
+        TreeMap<Integer, List<Lock>> held = new TreeMap<Integer, List<Lock>>();
+        for (int i = 0; i < this.locks.size(); i++) {
+            Lock lock = this.locks.get(i);
+            List<Lock> list = held.get(new Integer(lock.getXId()));
+            if (list == null) {
+                list = new ArrayList<Lock>();
+                held.put(new Integer(lock.getXId()), list);
+            }
+            list.add(lock);
+        }
+        return held;
+    }
+
+    /**
+     * @return the wait queue of every data item somebody waits for, by item
+     * name; each queue lists its waiters in the order they get the item.
+     */
+    public Map<String, List<Waiter>> getWaitQueues() {
+        TreeMap<String, List<Waiter>> queues = new TreeMap<String, List<Waiter>>();
+        for (int i = 0; i < this.waiters.size(); i++) {
+            Waiter waiter = this.waiters.get(i);
+            List<Waiter> queue = queues.get(waiter.getItem());
+            if (queue == null) {
+                queue = new ArrayList<Waiter>();
+                queues.put(waiter.getItem(), queue);
+            }
+            queue.add(waiter);
+        }
+        return queues;
+    }
+
+    /**
+     * @return one line per transaction holding locks, e.g.
+     * "xid 3 holds Flights:* INTENTION_WRITE, Flights:f1 WRITE", then one
+     * line per wait queue, e.g.
+     * "Flights:f1 queue: 5 WRITE waiting 1200 ms for 3; 7 READ waiting 80 ms for 3,5".
+     */
+    public String[] toLines() {
+        ArrayList<String> lines = new ArrayList<String>();
+        Map<Integer, List<Lock>> held = getHeldLocks();
+        for (Iterator<Map.Entry<Integer, List<Lock>>> iter = held.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<Integer, List<Lock>> entry = iter.next();
+            lines.add("xid " + entry.getKey() + " holds " + join(entry.getValue(), ", "));
+        }
+        Map<String, List<Waiter>> queues = getWaitQueues();
+        for (Iterator<Map.Entry<String, List<Waiter>>> iter = queues.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<String, List<Waiter>> entry = iter.next();
+            lines.add(entry.getKey() + " queue: " + join(entry.getValue(), "; "));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    private static String join(List list, String separator) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < list.size(); i++) {
+            if (i > 0) {
+                sb.append(separator);
+            }
+            sb.append(list.get(i));
+        }
+        return sb.toString();
+    }
+
+    public String toString() {
+        String[] lines = toLines();
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < lines.length; i++) {
+            sb.append(lines[i]).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -5,8 +5,14 @@ public class TrxnObj extends XObj {
 
     public static final int WRITE = 1;
 
+    public static final int UPDATE = 2;
+
     protected String strData = null;
 
+    // the data item as the lock table knows it: strData, or a LockKey in
+    // which case strData is null
+    protected Object item = null;
+
     protected int lockType = -1;
 
     // The data members inherited are
@@ -21,8 +27,9 @@ public class TrxnObj extends XObj {
     TrxnObj(int xid, String strData, int lockType) {
         super(xid);
         this.strData = new String(strData);
+        this.item = this.strData;
 
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE)) {
+        if (LockManager.isLockType(lockType)) {
             this.lockType = lockType;
         } else {
             this.lockType = -1; // invalid lock type.
@@ -30,7 +37,7 @@ public class TrxnObj extends XObj {
     }
 
     public String toString() {
-        String outString = new String(super.toString() + "::strData(" + this.strData + ")::lockType(" + this.lockType
+        String outString = new String(super.toString() + "::strData(" + this.item + ")::lockType(" + this.lockType
                 + ")");
         return outString;
     }
@@ -42,7 +49,7 @@ public class TrxnObj extends XObj {
 
         if (t instanceof TrxnObj) {
             if (this.xid == ((TrxnObj) t).getXId()) {
-                if (this.strData.equals(((TrxnObj) t).getDataName())) {
+                if (this.item.equals(((TrxnObj) t).item)) {
                     if (this.lockType == ((TrxnObj) t).getLockType()) {
                         return true;
                     }
@@ -59,15 +66,24 @@ public class TrxnObj extends XObj {
 
     public void setDataName(String strData) {
         this.strData = new String(strData);
+        this.item = this.strData;
     }
 
     public String getDataName() {
+        if (this.strData == null) {
+            return this.item.toString();
+        }
         String strData = new String(this.strData);
         return strData;
     }
 
+    // the data item itself, for the lock manager's own lookups
+    Object item() {
+        return this.item;
+    }
+
     public void setLockType(int lockType) {
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE)) {
+        if (LockManager.isLockType(lockType)) {
             this.lockType = lockType;
         }
     }
@@ -1,8 +1,27 @@
 package lockmgr;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
 public class WaitObj extends DataObj {
     protected Thread thread = null;
 
+    // set once the lock has been handed to the waiting thread
+    protected volatile boolean granted = false;
+
+    // the transaction holds a weaker lock on the data item already
+    protected boolean converting = false;
+
+    // completed once an asynchronous request is granted or given up, null
+    // if thread waits for the lock
+    protected CompletableFuture<Boolean> future = null;
+
+    // the deadlock timeout of an asynchronous request
+    protected Future timeout = null;
+
+    // System.nanoTime() at which the request started waiting
+    protected long since = System.nanoTime();
+
     // The data members inherited are
     // XObj:: protected int xid;
     // TrxnObj:: protected String strData;
@@ -23,7 +42,30 @@ public class WaitObj extends DataObj {
         this.thread = thread;
     }
 
+    // waiter for a lock on item, a String or a LockKey
+    WaitObj(int xid, Object item, int lockType, Thread thread) {
+        super();
+        reset(xid, item, lockType);
+        this.thread = thread;
+    }
+
     public Thread getThread() {
         return this.thread;
     }
+
+    public boolean isGranted() {
+        return this.granted;
+    }
+
+    public void setGranted() {
+        this.granted = true;
+    }
+
+    boolean isConverting() {
+        return this.converting;
+    }
+
+    void setConverting() {
+        this.converting = true;
+    }
 }
\ No newline at end of file
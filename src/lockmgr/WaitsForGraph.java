@@ -0,0 +1,194 @@
+package lockmgr;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Waits-for graph of the transactions blocked in a lock table. An edge
+ * a -> b means that transaction a is waiting for a lock held by transaction
+ * b. The graph is maintained incrementally: a waiter adds edges to the
+ * holders it finds when it blocks and to every conflicting holder granted
+ * the lock after that, and drops them once it is granted its lock or gives
+ * up; a transaction that releases its locks drops its incoming edges.
+ */
+class WaitsForGraph {
+    // guards everything below, a ReentrantLock so virtual threads do not pin
+    private final ReentrantLock latch = new ReentrantLock();
+
+    // waiting xid -> xids holding the lock it waits for
+    private HashMap<Integer, HashSet<Integer>> edges = new HashMap<Integer, HashSet<Integer>>();
+
+    // waiting xid -> thread blocked on its behalf, or the WaitObj of its
+    // asynchronous lock request
+    private HashMap<Integer, Object> waiters = new HashMap<Integer, Object>();
+
+    // victim xid -> System.nanoTime() at which the cycle was found
+    private HashMap<Integer, Long> victims = new HashMap<Integer, Long>();
+
+    // victims.size(), readable without taking the latch
+    private volatile int nVictims = 0;
+
+    void setWaiting(int xid, Object waiter, int[] holders) {
+        this.latch.lock();
+        try {
+            for (int i = 0; i < holders.length; i++) {
+                if (holders[i] != xid) {
+                    addEdge(xid, holders[i]);
+                }
+            }
+            this.waiters.put(new Integer(xid), waiter);
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // the holder may be granted its lock before the waiter got here
+    void addEdge(int waiter, int holder) {
+        this.latch.lock();
+        try {
+            Integer key = new Integer(waiter);
+            HashSet<Integer> out = this.edges.get(key);
+            if (out == null) {
+                out = new HashSet<Integer>();
+                this.edges.put(key, out);
+            }
+            out.add(new Integer(holder));
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // returns the transactions on a cycle through xid, or null if there is
+    // no such cycle.
+    int[] findCycle(int xid) {
+        this.latch.lock();
+        try {
+            Integer start = new Integer(xid);
+            Vector path = new Vector();
+            if (!reaches(start, start, new HashSet<Integer>(), path)) {
+                return null;
+            }
+            int[] cycle = new int[path.size()];
+            for (int i = 0; i < cycle.length; i++) {
+                cycle[i] = ((Integer) path.elementAt(i)).intValue();
+            }
+            return cycle;
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // depth-first search for a path from node back to target; on success
+    // path holds the nodes visited along the way, node first.
+    private boolean reaches(Integer node, Integer target, HashSet<Integer> visited, Vector path) {
+        HashSet<Integer> out = this.edges.get(node);
+        if (out == null) {
+            return false;
+        }
+        path.addElement(node);
+        for (Iterator<Integer> iter = out.iterator(); iter.hasNext(); ) {
+            Integer next = iter.next();
+            if (next.equals(target)) {
+                return true;
+            }
+            // a victim is about to abort, so cycles through it are broken
+            // already; there may be others among the remaining waiters
+            if (this.victims.containsKey(next)) {
+                continue;
+            }
+            if (visited.add(next) && reaches(next, target, visited, path)) {
+                return true;
+            }
+        }
+        path.removeElementAt(path.size() - 1);
+        return false;
+    }
+
+    // marks a transaction as deadlock victim. Returns the waiter to wake up,
+    // or null if xid is not waiting; a running victim is told at its next
+    // lock request.
+    Object markVictim(int xid, long foundAt) {
+        this.latch.lock();
+        try {
+            Integer key = new Integer(xid);
+            if (!this.victims.containsKey(key)) {
+                this.victims.put(key, new Long(foundAt));
+                this.nVictims = this.victims.size();
+            }
+            return this.waiters.get(key);
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // marks a waiting transaction as deadlock victim and returns its waiter.
+    // A transaction that stopped waiting in the meantime is left alone, the
+    // cycle through it is gone.
+    Object markWaitingVictim(int xid, long foundAt) {
+        this.latch.lock();
+        try {
+            if (!this.edges.containsKey(new Integer(xid))) {
+                return null;
+            }
+            return markVictim(xid, foundAt);
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // returns the time xid was chosen as victim, or -1 if it was not.
+    long victimSince(int xid) {
+        if (this.nVictims == 0) {
+            return -1;
+        }
+        this.latch.lock();
+        try {
+            Long foundAt = this.victims.get(new Integer(xid));
+            return (foundAt == null) ? -1 : foundAt.longValue();
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // xid stopped waiting; a victim mark stays until it gives up.
+    void remove(int xid) {
+        this.latch.lock();
+        try {
+            Integer key = new Integer(xid);
+            this.edges.remove(key);
+            this.waiters.remove(key);
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // xid is aborted or done, forget about it including a victim mark.
+    void forget(int xid) {
+        this.latch.lock();
+        try {
+            remove(xid);
+            if (this.victims.remove(new Integer(xid)) != null) {
+                this.nVictims = this.victims.size();
+            }
+        } finally {
+            this.latch.unlock();
+        }
+    }
+
+    // xid released all its locks, nobody waits for it any more.
+    void release(int xid) {
+        this.latch.lock();
+        try {
+            Integer key = new Integer(xid);
+            forget(xid);
+            for (Iterator<HashSet<Integer>> iter = this.edges.values().iterator(); iter.hasNext(); ) {
+                iter.next().remove(key);
+            }
+        } finally {
+            this.latch.unlock();
+        }
+    }
+}
@@ -16,9 +16,13 @@ import java.util.Vector;
  * (2): test failed
  * <p>
  * Test script syntax:
+ * option -Dname=value*
  * #threads
  * line*
  * <p>
+ * option lines, any number, pass their settings to every component the
+ * test launches, e.g. option -DconcurrencyControl=mvcc
+ * <p>
  * line: xid launch TM|RMFlights|RMRooms|RMCars|RMCustomers|WC|ALL
  * call func param*
  * return val?
@@ -42,11 +46,18 @@ public class Client {
     private static String currentLine = null;
     private static BufferedReader scriptReader =
             new BufferedReader(new InputStreamReader(System.in));
+    // -D settings of the option lines, for the components launched
+    private static String options = "";
 
     public static void main(String args[]) {
+        readNextLine();
+        while (currentLine.startsWith("option ")) {
+            options += " " + currentLine.substring("option ".length()).trim();
+            readNextLine();
+        }
+
         launch("ALL");
 
-        readNextLine();
         int numThreads = Integer.parseInt(currentLine);
         readNextLine();
         System.out.println("[M] Launching " + numThreads + " threads.");
@@ -97,7 +108,8 @@ public class Client {
                             "-c",
                             "java -classpath .. -DrmiPort=" + rmiPort +
                                     " -DrmiName=" + rmiNames[i] +
-                                    " -Djava.security.policy=./security-policy transaction." + classNames[i] +
+                                    " -Djava.security.policy=./security-policy" + options +
+                                    " transaction." + classNames[i] +
                                     " >>" + LOGDIR + rmiNames[i] + LOGSUFFIX + " 2>&1"});
                 } catch (IOException e) {
                     System.err.println("Cannot launch " + rmiNames[i] + ": " + e);
@@ -254,7 +266,7 @@ public class Client {
                         System.out.println("[" + id + "] " + methodName + " exceptioned: " + retExc.getClass().getName());
                     }
 
-                    if (methodName.equals("start") && retVal != null) {
+                    if ((methodName.equals("start") || methodName.equals("startReadOnly")) && retVal != null) {
                         xid = (Integer) retVal;
                         System.out.println("[" + id + "] xid set to " + xid.intValue());
                     }
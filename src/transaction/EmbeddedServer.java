@@ -0,0 +1,58 @@
+package transaction;
+
+import java.rmi.Naming;
+import java.rmi.RMISecurityManager;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+/**
+ * Runs the whole Distributed Travel Reservation System in one JVM: an RMI
+ * registry, the TM, the four RMs and the WC. Clients find them under the usual
+ * RMI names, so Client and SimpleClient work unchanged; each RM keeps a lock
+ * table of its own as it would in a process of its own.
+ * <p>
+ * Saves starting seven JVMs for tests and small deployments. Since all
+ * components share the process, dieNow() on any of them brings down all of
+ * them, so the failure tests still need the components started separately.
+ */
+
+public class EmbeddedServer {
+
+    public static void main(String args[]) {
+        System.setSecurityManager(new RMISecurityManager());
+
+        String rmiPort = System.getProperty("rmiPort");
+        int port = Registry.REGISTRY_PORT;
+        if (rmiPort == null) {
+            rmiPort = "";
+        } else if (!rmiPort.equals("")) {
+            port = Integer.parseInt(rmiPort);
+            rmiPort = "//:" + rmiPort + "/";
+        }
+
+        String[] rmiNames = new String[]{ResourceManager.RMINameFlights,
+                ResourceManager.RMINameRooms,
+                ResourceManager.RMINameCars,
+                ResourceManager.RMINameCustomers};
+
+        try {
+            LocateRegistry.createRegistry(port);
+            System.out.println("Registry started on port " + port);
+
+            // the RMs enlist with the TM as they start, and the WC looks up
+            // all of them
+            Naming.rebind(rmiPort + TransactionManager.RMIName, new TransactionManagerImpl());
+            System.out.println("TM bound");
+            for (int i = 0; i < rmiNames.length; i++) {
+                Naming.rebind(rmiPort + rmiNames[i], new ResourceManagerImpl(rmiNames[i]));
+                System.out.println(rmiNames[i] + " bound");
+            }
+            Naming.rebind(rmiPort + WorkflowController.RMIName, new WorkflowControllerImpl());
+            System.out.println("WC bound");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Embedded server not started:" + e);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package transaction;
+
+import java.io.IOException;
+
+/**
+ * Makes the log records of concurrent committers durable with one sync
+ * between them. A committer appends its record to the log without syncing,
+ * then calls commit(). The first one to get there syncs the log for all
+ * records appended so far, after waiting up to maxDelay milliseconds for
+ * more to come; those arriving meanwhile wait for that sync, or the next
+ * one, instead of each syncing on its own. Under many committers a sync
+ * thus covers many commits, and throughput is no longer bounded by the
+ * rate at which the disk syncs.
+ */
+public class GroupCommit {
+    /**
+     * The log made durable.
+     */
+    public interface Log {
+        /**
+         * Makes everything appended to the log so far durable.
+         */
+        void sync() throws IOException;
+    }
+
+    private Log log;
+
+    private long maxDelay;
+
+    // commit() calls so far, each one's ticket is its number
+    private long requested = 0;
+
+    // tickets covered by a finished sync
+    private long durable = 0;
+
+    private boolean syncing = false;
+
+    private long syncs = 0;
+
+    public GroupCommit(Log log, long maxDelay) {
+        this.log = log;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Returns once what the caller appended to the log before calling is
+     * durable.
+     *
+     * @throws IOException if the sync failed
+     */
+    public void commit() throws IOException {
+        long ticket;
+        synchronized (this) {
+            ticket = ++requested;
+            while (durable < ticket && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted waiting for the log sync");
+                }
+            }
+            if (durable >= ticket)
+                return;
+            syncing = true;
+        }
+
+        // lead the group: give others the chance to join, then sync for
+        // all that have
+        if (maxDelay > 0) {
+            try {
+                Thread.sleep(maxDelay);
+            } catch (InterruptedException e) {
+            }
+        }
+        long upTo;
+        synchronized (this) {
+            upTo = requested;
+        }
+        boolean synced = false;
+        try {
+            log.sync();
+            synced = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (synced) {
+                    durable = Math.max(durable, upTo);
+                    syncs++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the number of commit() calls so far.
+     */
+    public synchronized long getCommits() {
+        return requested;
+    }
+
+    /**
+     * @return the number of syncs so far; getCommits() / getSyncs() is the
+     * average group size.
+     */
+    public synchronized long getSyncs() {
+        return syncs;
+    }
+}
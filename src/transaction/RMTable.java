@@ -5,10 +5,14 @@
 package transaction;
 
 import lockmgr.DeadlockException;
+import lockmgr.LockKey;
 import lockmgr.LockManager;
 import transaction.entity.ResourceItem;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
@@ -19,16 +23,46 @@ import java.util.Set;
  * <p>
  */
 public class RMTable implements Serializable {
+    // the UID computed before the fields for locks, reads and versions were
+    // added, so tables written then still load
+    private static final long serialVersionUID = 8332309595399322271L;
+
     protected Hashtable table = new Hashtable();
 
     transient protected RMTable parent;
 
     protected Hashtable locks = new Hashtable();
 
+    // mode of the lock on the whole table, null if only rows are locked
+    protected Integer tableLock;
+
+    // rows read without a lock: key -> version of the committed item read,
+    // 0 if there was none; checked by validate()
+    protected Hashtable reads;
+
+    // on a committed table, the sequence number of the last commit applied
+    protected long clock;
+
+    // on a committed table, the versions replaced or deleted by commits that
+    // a snapshot may still read: key -> ArrayList of items, newest first,
+    // a deleted item marking when the key was deleted
+    protected Hashtable history;
+
+    // commit sequence number a read-only transaction reads at, its xid;
+    // null for the others
+    protected Long snapshot;
+
     transient protected LockManager lm;
 
     protected String tablename;
 
+    // LockKey.tableId(tablename), 0 until first needed
+    transient protected int tableId;
+
+    // mode of the table lock record() found the row locks escalated to,
+    // until takeEscalation() hands it to the RM to log
+    transient protected Integer escalation;
+
     protected int xid;
 
     public RMTable(String tablename, RMTable parent, int xid, LockManager lm) {
@@ -51,17 +85,296 @@ public class RMTable implements Serializable {
     }
 
     public void relockAll() throws DeadlockException {
+        if (tableLock != null && !lm.lock(xid, tableKey(), tableLock.intValue()))
+            throw new RuntimeException();
         for (Iterator iter = locks.entrySet().iterator(); iter.hasNext(); ) {
             Map.Entry entry = (Map.Entry) iter.next();
-            if (!lm.lock(xid, tablename + ":" + entry.getKey().toString(), ((Integer) entry.getValue()).intValue()))
+            if (!lm.lock(xid, lockKey(entry.getKey()), ((Integer) entry.getValue()).intValue()))
                 throw new RuntimeException();
         }
     }
 
     public void lock(Object key, int lockType) throws DeadlockException {
-        if (!lm.lock(xid, tablename + ":" + key.toString(), lockType))
+        if (!lm.lock(xid, lockKey(key), lockType))
+            throw new RuntimeException();
+        record(key, lockType);
+    }
+
+    // locks the rows with the given keys in the lock manager's global order
+    public void lockAll(Collection keys, int lockType) throws DeadlockException {
+        LockKey[] lockKeys = new LockKey[keys.size()];
+        int i = 0;
+        for (Iterator iter = keys.iterator(); iter.hasNext(); )
+            lockKeys[i++] = lockKey(iter.next());
+        if (!lm.lockAll(xid, lockKeys, lockType))
             throw new RuntimeException();
-        locks.put(key, new Integer(lockType));
+        for (Iterator iter = keys.iterator(); iter.hasNext(); )
+            record(iter.next(), lockType);
+    }
+
+    // remembers a granted row lock for relockAll()
+    protected void record(Object key, int lockType) {
+        if (tableLock != null && LockManager.covers(tableLock.intValue(), lockType))
+            return;
+        // the row locks may just have been escalated to a table lock
+        int escalated = (lm.getEscalationThreshold() > 0) ? lm.lockMode(xid, tableKey()) : -1;
+        if (LockManager.covers(escalated, lockType)) {
+            escalation = new Integer(escalated);
+            coverRows(escalated);
+            return;
+        }
+        Integer held = (Integer) locks.get(key);
+        if (held == null || !LockManager.covers(held.intValue(), lockType))
+            locks.put(key, new Integer(lockType));
+    }
+
+    // the mode row locks were escalated to since the last call, or null;
+    // logged as a table lock, recovery takes that instead of every row lock
+    public Integer takeEscalation() {
+        Integer mode = escalation;
+        escalation = null;
+        return mode;
+    }
+
+    public void lockTable(int lockType) throws DeadlockException {
+        if (!lm.lock(xid, tableKey(), lockType))
+            throw new RuntimeException();
+        recordTable(lockType);
+    }
+
+    // remembers a granted table lock for relockAll()
+    protected void recordTable(int lockType) {
+        if (tableLock == null || !LockManager.covers(tableLock.intValue(), lockType))
+            coverRows(LockManager.upgrade(tableLock == null ? lockType : tableLock.intValue(), lockType));
+    }
+
+    // records lockType as the table lock and forgets the row locks it
+    // covers, relockAll() need not take them again
+    protected void coverRows(int lockType) {
+        tableLock = new Integer(lockType);
+        for (Iterator iter = locks.values().iterator(); iter.hasNext(); ) {
+            if (LockManager.covers(lockType, ((Integer) iter.next()).intValue()))
+                iter.remove();
+        }
+    }
+
+    protected LockKey lockKey(Object key) {
+        if (tableId == 0)
+            tableId = LockKey.tableId(tablename);
+        return new LockKey(tableId, key);
+    }
+
+    protected LockKey tableKey() {
+        if (tableId == 0)
+            tableId = LockKey.tableId(tablename);
+        return LockKey.table(tableId);
+    }
+
+    // reads key without locking it and remembers the version of the
+    // committed item read, unless the transaction wrote the item itself
+    public ResourceItem readUnlocked(Object key) {
+        ResourceItem item = (ResourceItem) table.get(key);
+        if (item != null || parent == null)
+            return item;
+        item = parent.get(key);
+        if (reads == null)
+            reads = new Hashtable();
+        if (!reads.containsKey(key))
+            reads.put(key, new Long(item == null ? 0 : item.getVersion()));
+        return item;
+    }
+
+    public boolean hasUnlockedReads() {
+        return reads != null && !reads.isEmpty();
+    }
+
+    // the version readUnlocked() recorded for key, null if none
+    public Long readVersion(Object key) {
+        return (reads == null) ? null : (Long) reads.get(key);
+    }
+
+    public Set readKeySet() {
+        return (reads == null) ? new HashSet() : reads.keySet();
+    }
+
+    // locks the rows read by readUnlocked() in READ mode and checks that
+    // none of them has been changed by a transaction committed since.
+    // Returns false if one has; the locks keep others from changing them
+    // until this transaction ends.
+    public boolean validate() throws DeadlockException {
+        if (!hasUnlockedReads())
+            return true;
+        lockAll(reads.keySet(), LockManager.READ);
+        for (Iterator iter = reads.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            ResourceItem item = parent.get(entry.getKey());
+            if ((item == null ? 0 : item.getVersion()) != ((Long) entry.getValue()).longValue())
+                return false;
+        }
+        return true;
+    }
+
+    // puts the item written by the commit numbered seq into this committed
+    // table, keeping the version it replaces for snapshots older than seq
+    public synchronized void putCommitted(ResourceItem item, long seq, long oldestSnapshot) {
+        item.setVersion(seq);
+        ResourceItem old = (ResourceItem) table.put(item.getKey(), item);
+        if (old != null)
+            keepVersion(old, oldestSnapshot);
+        clock = seq;
+    }
+
+    // removes the item deleted by the commit numbered seq from this
+    // committed table, keeping it for snapshots older than seq
+    public synchronized void removeCommitted(Object key, long seq, long oldestSnapshot) {
+        ResourceItem old = (ResourceItem) table.remove(key);
+        if (old != null) {
+            ResourceItem deleted = (ResourceItem) old.clone();
+            deleted.delete();
+            deleted.setVersion(seq);
+            keepVersion(old, oldestSnapshot);
+            keepVersion(deleted, oldestSnapshot);
+        }
+        clock = seq;
+    }
+
+    protected void keepVersion(ResourceItem item, long oldestSnapshot) {
+        if (history == null)
+            history = new Hashtable();
+        ArrayList versions = (ArrayList) history.get(item.getKey());
+        if (versions == null) {
+            versions = new ArrayList();
+            history.put(item.getKey(), versions);
+        }
+        versions.add(0, item);
+        pruneVersions(item.getKey(), versions, oldestSnapshot);
+        if (versions.isEmpty())
+            history.remove(item.getKey());
+    }
+
+    // the item as committed at sequence number snapshot, null if it did not
+    // exist or was deleted then
+    public synchronized ResourceItem getAsOf(Object key, long snapshot) {
+        ResourceItem item = (ResourceItem) table.get(key);
+        if (item != null && item.getVersion() <= snapshot)
+            return item;
+        ArrayList versions = (history == null) ? null : (ArrayList) history.get(key);
+        if (versions != null) {
+            for (int i = 0; i < versions.size(); i++) {
+                item = (ResourceItem) versions.get(i);
+                if (item.getVersion() <= snapshot)
+                    return item.isDeleted() ? null : item;
+            }
+        }
+        return null;
+    }
+
+    // drops the versions no snapshot at oldestSnapshot or later can read
+    public synchronized void pruneVersions(long oldestSnapshot) {
+        if (history == null)
+            return;
+        for (Iterator iter = history.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            ArrayList versions = (ArrayList) entry.getValue();
+            pruneVersions(entry.getKey(), versions, oldestSnapshot);
+            if (versions.isEmpty())
+                iter.remove();
+        }
+    }
+
+    // the newest version at or before oldestSnapshot is the last one
+    // needed, unless it is in the table itself or marks a deletion
+    protected void pruneVersions(Object key, ArrayList versions, long oldestSnapshot) {
+        ResourceItem current = (ResourceItem) table.get(key);
+        int keep = versions.size();
+        if (current != null && current.getVersion() <= oldestSnapshot) {
+            keep = 0;
+        } else {
+            for (int i = 0; i < versions.size(); i++) {
+                ResourceItem item = (ResourceItem) versions.get(i);
+                if (item.getVersion() <= oldestSnapshot) {
+                    keep = item.isDeleted() ? i : i + 1;
+                    break;
+                }
+            }
+        }
+        while (versions.size() > keep)
+            versions.remove(versions.size() - 1);
+    }
+
+    // a copy of this committed table as it is now, for a checkpoint to
+    // write out while commits go on; the items themselves are not changed
+    // once committed and are shared
+    public synchronized RMTable checkpointCopy() {
+        RMTable copy = new RMTable(tablename, null, xid, null);
+        copy.table = new Hashtable(table);
+        copy.clock = clock;
+        if (history != null) {
+            copy.history = new Hashtable();
+            for (Iterator iter = history.entrySet().iterator(); iter.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                copy.history.put(entry.getKey(), new ArrayList((ArrayList) entry.getValue()));
+            }
+        }
+        return copy;
+    }
+
+    public long getClock() {
+        return clock;
+    }
+
+    public Long getSnapshot() {
+        return snapshot;
+    }
+
+    public void setSnapshot(Long snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    // reads key as committed at the transaction's snapshot, or as the
+    // transaction wrote it itself
+    public ResourceItem readSnapshot(Object key) {
+        ResourceItem item = (ResourceItem) table.get(key);
+        if (item != null || parent == null)
+            return item;
+        return parent.getAsOf(key, snapshot.longValue());
+    }
+
+    // keys of the items readSnapshot() may find
+    public Set snapshotKeySet() {
+        Hashtable t = new Hashtable();
+        if (parent != null) {
+            synchronized (parent) {
+                t.putAll(parent.table);
+                if (parent.history != null)
+                    t.putAll(parent.history);
+            }
+        }
+        t.putAll(table);
+        return t.keySet();
+    }
+
+    // redoes what a record of the redo log says this transaction did to the
+    // table; relockAll() takes the locks again
+    public void redo(RedoLog.Record r) {
+        switch (r.getType()) {
+            case RedoLog.WRITE:
+                table.put(r.getKey(), r.getItem());
+                record(r.getKey(), LockManager.WRITE);
+                break;
+            case RedoLog.LOCK:
+                if (r.getKey() == null)
+                    recordTable(r.getLockType());
+                else
+                    record(r.getKey(), r.getLockType());
+                break;
+            case RedoLog.READ:
+                if (reads == null)
+                    reads = new Hashtable();
+                if (!reads.containsKey(r.getKey()))
+                    reads.put(r.getKey(), new Long(r.getSeq()));
+                break;
+        }
     }
 
     public ResourceItem get(Object key) {
@@ -79,6 +392,11 @@ public class RMTable implements Serializable {
         table.remove(item.getKey());
     }
 
+    // keys of the items this transaction wrote, without those of its parent
+    public Set writtenKeySet() {
+        return table.keySet();
+    }
+
     public Set keySet() {
         Hashtable t = new Hashtable();
         if (parent != null) {
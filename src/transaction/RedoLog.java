@@ -0,0 +1,446 @@
+package transaction;
+
+import transaction.entity.ResourceItem;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only redo log of a Resource Manager. Rather than rewriting the
+ * table of a transaction on every operation and the whole committed table
+ * on every commit, the RM appends what changed: the after-image of a row a
+ * transaction wrote, a lock it took, its commit. recover() rebuilds the
+ * committed tables and the tables of the transactions still in flight by
+ * replaying the log over the table files, so a commit costs a write of the
+ * rows it changed, however large the table.
+ * <p>
+ * Each record is stored as its length, its CRC32 and the serialized Record.
+ * A record a crash tore off fails the check; it and anything after it are
+ * dropped when the log is read back.
+ * <p>
+ * The log is a series of segment files, path.0.log, path.1.log and so on.
+ * Records are appended to the last one; roll() starts a new one, and once
+ * a checkpoint has written the tables, deleteSegmentsBefore() drops those
+ * recovery no longer needs.
+ */
+public class RedoLog {
+    /**
+     * item is the after-image of its key, deleted for a delete.
+     */
+    public static final int WRITE = 1;
+    /**
+     * key was locked in mode lockType, or the table if key is null.
+     */
+    public static final int LOCK = 2;
+    /**
+     * key was read without a lock at version seq, see RMTable.readUnlocked.
+     */
+    public static final int READ = 3;
+    /**
+     * The transaction committed as commit sequence number seq.
+     */
+    public static final int COMMIT = 4;
+    /**
+     * The transaction ended without committing.
+     */
+    public static final int ABORT = 5;
+
+    public static class Record implements Serializable {
+        private int type;
+
+        private int xid;
+
+        private String tablename;
+
+        private Object key;
+
+        private ResourceItem item;
+
+        private int lockType;
+
+        private long seq;
+
+        // segment the record was read back from
+        transient private int segment;
+
+        private Record(int type, int xid, String tablename, Object key) {
+            this.type = type;
+            this.xid = xid;
+            this.tablename = tablename;
+            this.key = key;
+        }
+
+        public static Record write(int xid, String tablename, ResourceItem item) {
+            Record r = new Record(WRITE, xid, tablename, item.getKey());
+            r.item = item;
+            return r;
+        }
+
+        public static Record lock(int xid, String tablename, Object key, int lockType) {
+            Record r = new Record(LOCK, xid, tablename, key);
+            r.lockType = lockType;
+            return r;
+        }
+
+        public static Record read(int xid, String tablename, Object key, long version) {
+            Record r = new Record(READ, xid, tablename, key);
+            r.seq = version;
+            return r;
+        }
+
+        public static Record commit(int xid, long seq) {
+            Record r = new Record(COMMIT, xid, null, null);
+            r.seq = seq;
+            return r;
+        }
+
+        public static Record abort(int xid) {
+            return new Record(ABORT, xid, null, null);
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public int getXId() {
+            return xid;
+        }
+
+        public String getTablename() {
+            return tablename;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public ResourceItem getItem() {
+            return item;
+        }
+
+        public int getLockType() {
+            return lockType;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+    }
+
+    private File dir;
+
+    // segment files are named prefix + n + ".log"
+    private String prefix;
+
+    // the segment appended to
+    private int segment;
+
+    private File file;
+
+    private FileOutputStream fout;
+
+    private DataOutputStream out;
+
+    // bytes of whole records in the segment appended to
+    private long size;
+
+    // records appended to file may not be on disk, and there is no stream
+    // open to sync them with
+    private boolean unsynced;
+
+    private GroupCommit group;
+
+    /**
+     * @param groupCommitDelay how long, in milliseconds, a force() may wait
+     *                         for others to share its sync
+     */
+    public RedoLog(String path, long groupCommitDelay) {
+        File f = new File(path).getAbsoluteFile();
+        this.dir = f.getParentFile();
+        this.prefix = f.getName() + ".";
+        int[] segments = segments();
+        this.segment = (segments.length > 0) ? segments[segments.length - 1] : 0;
+        this.file = segmentFile(segment);
+        this.size = file.length();
+        this.group = new GroupCommit(new GroupCommit.Log() {
+            public void sync() throws IOException {
+                RedoLog.this.sync();
+            }
+        }, groupCommitDelay);
+    }
+
+    /**
+     * Reads back the records in the log, in the order they were appended,
+     * and cuts off a torn record at the end of a segment. Call it before the
+     * first append.
+     */
+    public synchronized List<Record> replay() throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        int[] segments = segments();
+        for (int i = 0; i < segments.length; i++) {
+            long valid = replay(segmentFile(segments[i]), segments[i], records);
+            if (segments[i] == segment)
+                size = valid;
+        }
+        return records;
+    }
+
+    // adds the records of a segment to records, returns the bytes they take
+    private long replay(File f, int n, List<Record> records) throws IOException {
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            while (true) {
+                int length;
+                long crc;
+                byte[] bytes;
+                try {
+                    length = in.readInt();
+                    crc = in.readLong();
+                    if (length < 0 || length > f.length() - valid - 12)
+                        break;
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (checksum(bytes) != crc)
+                    break;
+                Record r;
+                try {
+                    r = (Record) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unreadable redo record: " + e);
+                }
+                r.segment = n;
+                records.add(r);
+                valid += 12 + length;
+            }
+        } finally {
+            in.close();
+        }
+        if (valid < f.length()) {
+            System.out.println("Redo log " + f + ": dropping " + (f.length() - valid) + " torn bytes");
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Appends records to the log, together. They reach the disk when the
+     * log is forced, or whenever the OS gets to it.
+     *
+     * @return false if they could not be written
+     */
+    public synchronized boolean append(Record... records) {
+        try {
+            if (out == null) {
+                fout = new FileOutputStream(file, true);
+                out = new DataOutputStream(new BufferedOutputStream(fout));
+            }
+            long written = 0;
+            for (int i = 0; i < records.length; i++) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream oout = new ObjectOutputStream(bytes);
+                oout.writeObject(records[i]);
+                oout.close();
+                byte[] b = bytes.toByteArray();
+                out.writeInt(b.length);
+                out.writeLong(checksum(b));
+                out.write(b);
+                written += 12 + b.length;
+            }
+            out.flush();
+            size += written;
+            return true;
+        } catch (IOException e) {
+            System.err.println("Can't write redo log " + file + ": " + e);
+            truncate();
+            return false;
+        }
+    }
+
+    /**
+     * Returns once the records appended so far are on disk, sharing the
+     * sync with concurrent callers.
+     *
+     * @return false if they could not be synced
+     */
+    public boolean force() {
+        try {
+            group.commit();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Can't sync redo log " + file + ": " + e);
+            return false;
+        }
+    }
+
+    public GroupCommit getGroupCommit() {
+        return group;
+    }
+
+    /**
+     * Syncs the segment appended to and starts a new one; the records
+     * appended from now on go there.
+     *
+     * @return the number of the new segment
+     */
+    public synchronized int roll() throws IOException {
+        if (out != null) {
+            out.flush();
+            fout.getFD().sync();
+            out.close();
+            out = null;
+            fout = null;
+        } else if (unsynced) {
+            syncFile();
+        }
+        unsynced = false;
+        segment++;
+        file = segmentFile(segment);
+        size = 0;
+        return segment;
+    }
+
+    /**
+     * @return the number of the segment appended to
+     */
+    public synchronized int getSegment() {
+        return segment;
+    }
+
+    /**
+     * @return the bytes appended to the current segment
+     */
+    public synchronized long getSegmentSize() {
+        return size;
+    }
+
+    /**
+     * Deletes the segments numbered below segment.
+     */
+    public synchronized void deleteSegmentsBefore(int segment) {
+        int[] segments = segments();
+        for (int i = 0; i < segments.length && segments[i] < segment; i++) {
+            if (!segmentFile(segments[i]).delete())
+                System.err.println("Can't delete redo log segment " + segmentFile(segments[i]));
+        }
+    }
+
+    // appends go on while the disk syncs
+    private void sync() throws IOException {
+        FileOutputStream f;
+        synchronized (this) {
+            if (out == null) {
+                if (unsynced)
+                    syncFile();
+                return;
+            }
+            out.flush();
+            f = fout;
+        }
+        try {
+            f.getFD().sync();
+        } catch (IOException e) {
+            // roll() synced and closed the segment meanwhile
+            synchronized (this) {
+                if (f == fout)
+                    throw e;
+            }
+            return;
+        }
+        synchronized (this) {
+            // the sync covered the whole file
+            if (f == fout)
+                unsynced = false;
+        }
+    }
+
+    // syncs the segment appended to without a stream open on it
+    private void syncFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        unsynced = false;
+    }
+
+    private File segmentFile(int n) {
+        return new File(dir, prefix + n + ".log");
+    }
+
+    // numbers of the segments on disk, in ascending order
+    private int[] segments() {
+        String[] names = dir.list();
+        if (names == null)
+            return new int[0];
+        int[] segments = new int[names.length];
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (!names[i].startsWith(prefix) || !names[i].endsWith(".log"))
+                continue;
+            try {
+                segments[count] = Integer.parseInt(names[i].substring(prefix.length(), names[i].length() - 4));
+                count++;
+            } catch (NumberFormatException e) {
+            }
+        }
+        int[] sorted = new int[count];
+        System.arraycopy(segments, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // cuts off what a failed append left behind, the next one starts over.
+    // The records appended before it may not be synced yet: the segment
+    // stays open for sync(), or is marked unsynced if it can't.
+    private void truncate() {
+        try {
+            if (fout != null) {
+                fout.getChannel().truncate(size);
+                // drops what the failed append left in the buffer
+                out = new DataOutputStream(new BufferedOutputStream(fout));
+                return;
+            }
+        } catch (IOException e) {
+        }
+        try {
+            if (fout != null)
+                fout.close();
+        } catch (IOException e) {
+        }
+        out = null;
+        fout = null;
+        unsynced = true;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+}
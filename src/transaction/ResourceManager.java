@@ -1,6 +1,7 @@
 package transaction;
 
 import lockmgr.DeadlockException;
+import lockmgr.LockTableSnapshot;
 import transaction.entity.ResourceItem;
 
 import java.rmi.Remote;
@@ -38,14 +39,66 @@ public interface ResourceManager extends Remote {
 
     public String getID() throws RemoteException;
 
+    /**
+     * Returns a snapshot of the lock table of this RM: the locks each
+     * transaction holds and the queue of waiters of each data item, with how
+     * long they have been blocked and by whom. Cheap enough to poll every
+     * few seconds; also available as the dumpLockTable operation of its
+     * LockManager MBean.
+     */
+    public LockTableSnapshot getLockTable() throws RemoteException;
+
     public ResourceItem query(int xid, String tablename, Object key)
             throws DeadlockException, InvalidTransactionException,
             RemoteException;
 
+    /**
+     * Like query, but locks the item in UPDATE mode: other transactions may
+     * still read it, but only one at a time may query it for update. Use it
+     * to read an item the transaction is going to update.
+     */
+    public ResourceItem queryForUpdate(int xid, String tablename, Object key)
+            throws DeadlockException, InvalidTransactionException,
+            RemoteException;
+
+    /**
+     * Locks the items with the given keys in mode <tt>lockType</tt>, one of
+     * LockManager.READ, LockManager.UPDATE or LockManager.WRITE, without
+     * reading them. The items are locked in a global order rather than in
+     * the order of <tt>keys</tt>, so two transactions locking overlapping
+     * sets of items this way cannot deadlock on them. Use it before
+     * querying and updating several items of a table.
+     *
+     * @return false if lockType is not a row lock mode
+     */
+    public boolean lockAll(int xid, String tablename, Collection keys, int lockType)
+            throws DeadlockException, InvalidTransactionException,
+            RemoteException;
+
     public Collection<ResourceItem> query(int xid, String tablename, String indexName,
                             Object indexVal) throws DeadlockException,
             InvalidTransactionException, InvalidIndexException, RemoteException;
 
+    /**
+     * Reads an item for a read-only transaction: takes no locks, neither
+     * enlists with the TM nor logs the transaction, and writes no shadow
+     * table. With -DconcurrencyControl=mvcc the item is the one committed
+     * as of the start of the transaction, by the commits numbered below xid,
+     * waiting for such a commit still in progress here. If the transaction
+     * has timed out and those versions have gone, it throws
+     * InvalidTransactionException. Otherwise the item is the one committed
+     * last.
+     */
+    public ResourceItem queryReadOnly(int xid, String tablename, Object key)
+            throws InvalidTransactionException, RemoteException;
+
+    /**
+     * Index query of a read-only transaction, see queryReadOnly.
+     */
+    public Collection<ResourceItem> queryReadOnly(int xid, String tablename, String indexName,
+                                                  Object indexVal)
+            throws InvalidTransactionException, InvalidIndexException, RemoteException;
+
     public boolean update(int xid, String tablename, Object key,
                           ResourceItem newItem) throws DeadlockException,
             InvalidTransactionException, RemoteException;
@@ -62,10 +115,29 @@ public interface ResourceManager extends Remote {
                       Object indexVal) throws DeadlockException,
             InvalidTransactionException, InvalidIndexException, RemoteException;
 
-    public boolean prepare(int xid) throws InvalidTransactionException,
+    /**
+     * Votes of prepare.
+     */
+    public static final int VOTE_NO = 0;
+    public static final int VOTE_PREPARED = 1;
+    /**
+     * The transaction wrote nothing here: the RM has already released it
+     * and needs neither commit nor abort.
+     */
+    public static final int VOTE_READ_ONLY = 2;
+
+    /**
+     * @return VOTE_PREPARED, VOTE_READ_ONLY or VOTE_NO
+     */
+    public int prepare(int xid) throws InvalidTransactionException,
             RemoteException;
 
-    public void commit(int xid) throws InvalidTransactionException,
+    /**
+     * Commits xid as commit sequence number seq. Snapshots older than
+     * oldestSnapshot are no longer read, the versions only they could read
+     * may go.
+     */
+    public void commit(int xid, long seq, long oldestSnapshot) throws InvalidTransactionException,
             RemoteException;
 
     public void abort(int xid) throws InvalidTransactionException,
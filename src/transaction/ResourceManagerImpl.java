@@ -2,9 +2,12 @@ package transaction;
 
 import lockmgr.DeadlockException;
 import lockmgr.LockManager;
+import lockmgr.LockTableSnapshot;
 import transaction.entity.ResourceItem;
 
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.rmi.Naming;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
@@ -23,8 +26,43 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
     private String dieTime;
     // RMs
     private HashSet xids = new HashSet();
-    private LockManager lm = new LockManager();
+    // xids the TM knows are at this RM, guarded by xids
+    private HashSet enlisted = new HashSet();
+    private LockManager lm = createLockManager();
+    // -DconcurrencyControl=optimistic reads items by key without locking
+    // them and validates what was read at prepare time,
+    // -DconcurrencyControl=mvcc serves the reads of read-only transactions
+    // from the committed tables as of their start, without locking;
+    // read-write ones lock what they read, so a check guarding a write
+    // still conflicts
+    private boolean optimistic = "optimistic".equals(System.getProperty("concurrencyControl"));
+    private boolean multiversion = "mvcc".equals(System.getProperty("concurrencyControl"));
     private Hashtable tables = new Hashtable();
+    // -DgroupCommitDelay=ms lets a commit wait up to ms milliseconds for
+    // others to share its sync of the redo log
+    private final static long GROUP_COMMIT_DELAY = Long.getLong("groupCommitDelay", 0).longValue();
+    // xid -> tables of the transactions prepared here and not committed or
+    // aborted yet; snapshot reads wait for those that wrote what they read.
+    // Also guards oldestSnapshot and dirty.
+    private Hashtable prepared = new Hashtable();
+    // the oldest snapshot the TM says may still be read, the versions only
+    // older ones read are dropped
+    private long oldestSnapshot = 0;
+    // xids whose commit is logged but not yet applied to the committed
+    // tables, guarded by prepared
+    private HashSet committing = new HashSet();
+    // what the transactions did, in place of table files rewritten per
+    // operation; created by recover()
+    private RedoLog redoLog;
+    // -DcheckpointInterval=s writes the committed tables every s seconds,
+    // so the redo log before can be deleted; 0 never does
+    private final static long CHECKPOINT_INTERVAL = Long.getLong("checkpointInterval", 60).longValue();
+    // names of the committed tables changed since the last checkpoint,
+    // guarded by prepared
+    private HashSet dirty = new HashSet();
+    // xid -> number of the redo log segment its first record went to; the
+    // log is kept from there until it ends
+    private Hashtable firstSegments = new Hashtable();
 
     public ResourceManagerImpl(String rmiName) throws RemoteException {
         // check whether the resource is valid
@@ -35,8 +73,27 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         myRMIName = rmiName;
         dieTime = "NoDie";
 
+        registerLockManager();
+
         recover();
 
+        if (CHECKPOINT_INTERVAL > 0) {
+            Thread checkpointer = new Thread(myRMIName + " checkpointer") {
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(CHECKPOINT_INTERVAL * 1000);
+                        } catch (InterruptedException e) {
+                        }
+                        if (redoLog.getSegmentSize() > 0)
+                            checkpoint();
+                    }
+                }
+            };
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }
+
         while (!reconnect()) {
             try {
                 Thread.sleep(500);
@@ -95,6 +152,40 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         }
     }
 
+    // -DlockStripes=n selects a lock table split into n independent stripes,
+    // -DdeadlockPolicy=waitsfor enables waits-for graph deadlock detection,
+    // -DdeadlockPolicy=waitdie or woundwait prevents deadlocks by ordering
+    // transactions on their xid,
+    // -DdeadlockVictim=fewestlocks aborts the member of a cycle with the fewest locks,
+    // -DlockEscalation=n trades n row locks on a table for one table lock, and
+    // -DlockFairness=unfair lets new lock requests overtake blocked ones
+    private static LockManager createLockManager() {
+        int nStripes = Integer.getInteger("lockStripes", 0).intValue();
+        LockManager lm = nStripes > 0 ? new LockManager(nStripes) : new LockManager();
+        String policy = System.getProperty("deadlockPolicy", "timeout");
+        if (policy.equals("waitsfor"))
+            lm.setDeadlockPolicy(LockManager.DETECT_WAITS_FOR);
+        else if (policy.equals("waitdie"))
+            lm.setDeadlockPolicy(LockManager.PREVENT_WAIT_DIE);
+        else if (policy.equals("woundwait"))
+            lm.setDeadlockPolicy(LockManager.PREVENT_WOUND_WAIT);
+        if ("fewestlocks".equals(System.getProperty("deadlockVictim")))
+            lm.setVictimPolicy(LockManager.VICTIM_FEWEST_LOCKS);
+        lm.setEscalationThreshold(Integer.getInteger("lockEscalation", 0).intValue());
+        lm.setFair(!"unfair".equals(System.getProperty("lockFairness")));
+        return lm;
+    }
+
+    // publishes the lock statistics as transaction:type=LockManager,name=<RMI name>
+    private void registerLockManager() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(lm,
+                    new ObjectName("transaction:type=LockManager,name=" + myRMIName));
+        } catch (Exception e) {
+            System.err.println("Can't register the lock manager MBean: " + e);
+        }
+    }
+
     public void setDieTime(String time) throws RemoteException {
         dieTime = time;
         System.out.println("Die time set to : " + time);
@@ -104,6 +195,10 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         return myRMIName;
     }
 
+    public LockTableSnapshot getLockTable() throws RemoteException {
+        return lm.snapshot();
+    }
+
     public void recover() {
         HashSet t_xids = loadTransactionLogs();
         if (t_xids != null)
@@ -123,21 +218,64 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             if (datas[i].getName().endsWith(".log")) {
                 continue;
             }
+            // temp file of a store that died, from before utils.storeObject
+            // wrote them under data/tmp
+            if (datas[i].getName().endsWith(".tmp")) {
+                continue;
+            }
             getTable(datas[i].getName());
         }
 
-        //xtable
-        for (int i = 0; i < datas.length; i++) {
-            if (!datas[i].isDirectory())
-                continue;
-            File[] xdatas = datas[i].listFiles();
-            int xid = Integer.parseInt(datas[i].getName());
-            if (!xids.contains(new Integer(xid))) {
-                //this should never happen;
-                throw new RuntimeException("ERROR: UNEXPECTED XID");
+        // redo the committed transactions in the log on the tables, and
+        // rebuild the xtables of those in flight. The tables hold the
+        // commits logged before the checkpoint segment, and maybe some
+        // after; redoing those again is harmless.
+        Integer checkpoint = (Integer) utils.loadObject(checkpointPath());
+        int checkpointSegment = (checkpoint == null) ? 0 : checkpoint.intValue();
+        redoLog = new RedoLog("data/" + myRMIName + ".redo", GROUP_COMMIT_DELAY);
+        List<RedoLog.Record> records;
+        try {
+            records = redoLog.replay();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Hashtable pending = new Hashtable();
+        for (Iterator<RedoLog.Record> iter = records.iterator(); iter.hasNext(); ) {
+            RedoLog.Record r = iter.next();
+            Integer xid = new Integer(r.getXId());
+            Hashtable xidtables = (Hashtable) pending.get(xid);
+            if (r.getType() == RedoLog.COMMIT) {
+                if (xidtables != null && r.getSegment() >= checkpointSegment)
+                    apply(xidtables, r.getSeq());
+                pending.remove(xid);
+                firstSegments.remove(xid);
+            } else if (r.getType() == RedoLog.ABORT) {
+                pending.remove(xid);
+                firstSegments.remove(xid);
+            } else {
+                if (xidtables == null) {
+                    xidtables = new Hashtable();
+                    pending.put(xid, xidtables);
+                    firstSegments.put(xid, new Integer(r.getSegment()));
+                }
+                RMTable xtable = (RMTable) xidtables.get(r.getTablename());
+                if (xtable == null) {
+                    xtable = new RMTable(r.getTablename(), getTable(r.getTablename()), xid.intValue(), lm);
+                    xidtables.put(r.getTablename(), xtable);
+                }
+                xtable.redo(r);
             }
-            for (int j = 0; j < xdatas.length; j++) {
-                RMTable xtable = getTable(xid, xdatas[j].getName());
+        }
+
+        //xtable
+        for (Iterator iter = pending.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            Integer xid = (Integer) entry.getKey();
+            // the TM says whether it has committed when we enlist again
+            xids.add(xid);
+            tables.put(xid, entry.getValue());
+            for (Iterator iter2 = ((Hashtable) entry.getValue()).values().iterator(); iter2.hasNext(); ) {
+                RMTable xtable = (RMTable) iter2.next();
                 try {
 //                    reacquire all locks for the transaction
 //                    should ask coordinator for the status of transaction later
@@ -171,7 +309,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                     continue;
                 } else if (status.equals(TransactionManager.COMMITTED)) {
                     System.out.println("xid has been committed: " + xid);
-                    commit(xid);
+                    commit(xid, tm.getCommitSeq(xid), 0);
                     continue;
                 }
                 if (dieTime.equals("AfterEnlist"))
@@ -233,23 +371,85 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         }
     }
 
+    // replaces the file in one step, with the table on disk
     protected boolean storeTable(RMTable table, File file) {
         file.getParentFile().mkdirs();
-        ObjectOutputStream oout = null;
-        try {
-            oout = new ObjectOutputStream(new FileOutputStream(file));
-            oout.writeObject(table);
-            oout.flush();
-            return true;
-        } catch (Exception e) {
-            return false;
-        } finally {
+        return utils.storeObject(table, file.getPath(), true);
+    }
+
+    protected String checkpointPath() {
+        return "data/" + myRMIName + ".checkpoint.log";
+    }
+
+    /**
+     * Writes out the committed tables changed since the last checkpoint and
+     * deletes the redo log segments recovery no longer needs. Transactions
+     * go on meanwhile: each table is copied on its own, and the commits
+     * logged after the checkpoint began are redone on recovery, whether the
+     * copy has them or not. Called by the checkpointer thread only.
+     *
+     * @return false if the checkpoint could not be written
+     */
+    protected boolean checkpoint() {
+        // most of what the roll syncs, without holding up commits
+        redoLog.force();
+        int segment;
+        int keep;
+        HashSet changed;
+        // commits are logged with prepared locked, so those logged before
+        // the new segment are all in the tables once the ones still being
+        // synced are applied
+        synchronized (prepared) {
             try {
-                if (oout != null)
-                    oout.close();
-            } catch (IOException e1) {
+                segment = redoLog.roll();
+            } catch (IOException e) {
+                System.err.println(myRMIName + " can't roll the redo log: " + e);
+                return false;
+            }
+            // a commit is synced before it is applied; those logged before
+            // the roll must be applied before the tables are written
+            HashSet logged = new HashSet(committing);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!logged.isEmpty()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    System.err.println(myRMIName + " can't checkpoint, commits not applied: " + logged);
+                    return false;
+                }
+                try {
+                    prepared.wait(left);
+                } catch (InterruptedException e) {
+                }
+                logged.retainAll(committing);
+            }
+            changed = dirty;
+            dirty = new HashSet();
+            // transactions in flight are rebuilt from their first record
+            keep = segment;
+            synchronized (firstSegments) {
+                for (Iterator iter = firstSegments.values().iterator(); iter.hasNext(); )
+                    keep = Math.min(keep, ((Integer) iter.next()).intValue());
+            }
+        }
+
+        boolean stored = true;
+        for (Iterator iter = changed.iterator(); stored && iter.hasNext(); ) {
+            String tablename = (String) iter.next();
+            RMTable copy = getTable(tablename).checkpointCopy();
+            stored = storeTable(copy, new File("data/" + tablename));
+        }
+        if (stored)
+            stored = utils.storeObject(new Integer(segment), checkpointPath(), true);
+        if (!stored) {
+            System.err.println(myRMIName + " can't write the checkpoint");
+            synchronized (prepared) {
+                dirty.addAll(changed);
             }
+            return false;
         }
+        redoLog.deleteSegmentsBefore(keep);
+        System.out.println(myRMIName + " checkpointed " + changed.size() + " tables at redo log segment " + segment);
+        return true;
     }
 
     protected RMTable getTable(int xid, String tablename) {
@@ -265,17 +465,18 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             RMTable table = (RMTable) xidtables.get(tablename);
             if (table != null)
                 return table;
-            table = loadTable(new File("data/" + (xid == -1 ? "" : "" + xid + "/") + tablename));
-            if (table == null) {
-                if (xid == -1)
+            // a transaction's table starts empty, recover() rebuilds those
+            // in flight from the redo log
+            if (xid != -1)
+                table = new RMTable(tablename, getTable(tablename), xid, lm);
+            else {
+                File file = new File("data/" + tablename);
+                table = loadTable(file);
+                if (table == null) {
+                    // starting empty would lose the committed rows
+                    if (file.exists())
+                        throw new RuntimeException("Can't load table " + file);
                     table = new RMTable(tablename, null, -1, lm);
-                else {
-                    table = new RMTable(tablename, getTable(tablename), xid, lm);
-                }
-            } else {
-                if (xid != -1) {
-                    table.setLockManager(lm);
-                    table.setParent(getTable(tablename));
                 }
             }
             xidtables.put(tablename, table);
@@ -287,72 +488,201 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         return getTable(-1, tablename);
     }
 
+    protected void log(RedoLog.Record... records) throws RemoteException {
+        if (records.length > 0) {
+            keepFrom(records[0].getXId());
+            records = withEscalation(records);
+        }
+        if (!redoLog.append(records)) {
+            throw new RemoteException("System Error: Can't write the redo log!");
+        }
+    }
+
+    // adds a table lock record after records if taking the locks they
+    // record escalated the transaction's row locks on their table
+    protected RedoLog.Record[] withEscalation(RedoLog.Record[] records) {
+        RedoLog.Record first = records[0];
+        if (first.getTablename() == null)
+            return records;
+        Hashtable xidtables = (Hashtable) tables.get(new Integer(first.getXId()));
+        RMTable xtable = (xidtables == null) ? null : (RMTable) xidtables.get(first.getTablename());
+        Integer escalated = (xtable == null) ? null : xtable.takeEscalation();
+        if (escalated == null)
+            return records;
+        RedoLog.Record[] all = new RedoLog.Record[records.length + 1];
+        System.arraycopy(records, 0, all, 0, records.length);
+        all[records.length] = RedoLog.Record.lock(first.getXId(), first.getTablename(), null, escalated.intValue());
+        return all;
+    }
+
+    // notes the segment the first record of xid goes to, or an older one
+    protected void keepFrom(int xid) {
+        synchronized (firstSegments) {
+            Integer key = new Integer(xid);
+            if (!firstSegments.containsKey(key))
+                firstSegments.put(key, new Integer(redoLog.getSegment()));
+        }
+    }
+
+    protected RedoLog.Record[] lockRecords(int xid, String tablename, Collection keys, int lockType) {
+        RedoLog.Record[] records = new RedoLog.Record[keys.size()];
+        int i = 0;
+        for (Iterator iter = keys.iterator(); iter.hasNext(); )
+            records[i++] = RedoLog.Record.lock(xid, tablename, iter.next(), lockType);
+        return records;
+    }
+
+    // drops the versions only snapshots older than oldest could read, the
+    // TM having said none of those is read any more; called with prepared
+    // locked
+    protected void setOldestSnapshot(long oldest) {
+        if (oldest <= oldestSnapshot)
+            return;
+        oldestSnapshot = oldest;
+        Hashtable committed = (Hashtable) tables.get(new Integer(-1));
+        if (committed == null)
+            return;
+        synchronized (committed) {
+            for (Iterator iter = committed.values().iterator(); iter.hasNext(); )
+                ((RMTable) iter.next()).pruneVersions(oldest);
+        }
+    }
+
+    // waits until the snapshot xid may read key of tablename, or any key if
+    // key is null: no transaction prepared here, which may have committed
+    // before xid started, has written it. Called with prepared locked.
+    protected void awaitSnapshot(int xid, String tablename, Object key) throws InvalidTransactionException {
+        while (preparedWrite(tablename, key)) {
+            try {
+                prepared.wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        if (xid < oldestSnapshot)
+            throw new InvalidTransactionException(xid, "snapshot too old");
+    }
+
+    // whether a prepared transaction has written key of tablename, or any
+    // key if key is null; called with prepared locked
+    private boolean preparedWrite(String tablename, Object key) {
+        for (Iterator iter = prepared.values().iterator(); iter.hasNext(); ) {
+            RMTable xtable = (RMTable) ((Hashtable) iter.next()).get(tablename);
+            if (xtable == null)
+                continue;
+            Set written = xtable.writtenKeySet();
+            if (key == null ? !written.isEmpty() : written.contains(key))
+                return true;
+        }
+        return false;
+    }
+
     protected HashSet loadTransactionLogs() {
         return (HashSet) utils.loadObject("data/transactions.log");
     }
 
+    // joins xid to the TM at its first operation here, the others find it
+    // in enlisted and skip the log write and the calls to the TM. A xid the
+    // TM says it has aborted is not cached: it goes on as before, asking
+    // the TM at every operation.
+    protected void enlist(int xid) throws RemoteException {
+        Integer key = new Integer(xid);
+        synchronized (xids) {
+            if (enlisted.contains(key))
+                return;
+            if (xids.add(key))
+                storeTransactionLogs(xids);
+        }
+        String status;
+        try {
+            status = getTransactionManager().enlist(xid, this);
+        } catch (TransactionManagerUnaccessibleException e) {
+            throw new RemoteException(e.getLocalizedMessage(), e);
+        }
+        if (status.equals(TransactionManager.ABORTED))
+            return;
+        // not if commit() or abort() has ended xid meanwhile
+        synchronized (xids) {
+            if (xids.contains(key))
+                enlisted.add(key);
+        }
+    }
+
     protected boolean storeTransactionLogs(HashSet xids) {
         return utils.storeObject(xids, "data/transactions.log");
     }
 
     public ResourceItem query(int xid, String tablename, Object key) throws DeadlockException,
             InvalidTransactionException, RemoteException {
+        return query(xid, tablename, key, LockManager.READ);
+    }
+
+    public ResourceItem queryForUpdate(int xid, String tablename, Object key) throws DeadlockException,
+            InvalidTransactionException, RemoteException {
+        return query(xid, tablename, key, LockManager.UPDATE);
+    }
+
+    protected ResourceItem query(int xid, String tablename, Object key, int lockType) throws DeadlockException,
+            InvalidTransactionException, RemoteException {
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
 
+        RMTable table = getTable(xid, tablename);
+        if (optimistic && lockType == LockManager.READ) {
+            // no lock, the version first read is checked by prepare()
+            boolean reread = table.readVersion(key) != null;
+            ResourceItem item = table.readUnlocked(key);
+            Long version = table.readVersion(key);
+            if (version != null && !reread)
+                log(RedoLog.Record.read(xid, tablename, key, version.longValue()));
+            return (item == null || item.isDeleted()) ? null : item;
+        }
+
         // read twice, first to get lock, then to read.
         // if the item hasn't been locked by other transactions, just read twice and the results are same
         // if the item has been locked by other transactions, then wait for lock and read new result.
         // first to get lock
-        RMTable table = getTable(xid, tablename);
         ResourceItem item = table.get(key);
         if (item != null && !item.isDeleted()) {
-            table.lock(key, LockManager.READ);
+            table.lock(key, lockType);
+            log(RedoLog.Record.lock(xid, tablename, key, lockType));
 
             // then to read values
-            // remove old value
-            Hashtable xidtables = (Hashtable) tables.get(xid); // can not be null
-            synchronized (xidtables) {
-                xidtables.remove(tablename);
-            }
-            // read new value
-            table = getTable(xid, tablename);
-            item = table.get(key);
-            if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-                throw new RemoteException("System Error: Can't write table to disk!");
-            }
-            return item;
+            return table.get(key);
         }
         return null;
     }
 
+    public boolean lockAll(int xid, String tablename, Collection keys, int lockType) throws DeadlockException,
+            InvalidTransactionException, RemoteException {
+        if (xid < 0) {
+            throw new InvalidTransactionException(xid, "Xid must be positive.");
+        }
+        if (lockType != LockManager.READ && lockType != LockManager.UPDATE && lockType != LockManager.WRITE)
+            return false;
+        enlist(xid);
+
+        if (dieTime.equals("AfterEnlist"))
+            dieNow();
+
+        RMTable table = getTable(xid, tablename);
+        synchronized (table) {
+            table.lockAll(keys, lockType);
+            log(lockRecords(xid, tablename, keys, lockType));
+        }
+        return true;
+    }
+
     public Collection<ResourceItem> query(int xid, String tablename, String indexName, Object indexVal) throws DeadlockException,
             InvalidTransactionException, InvalidIndexException, RemoteException {
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
@@ -363,25 +693,15 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         // if the item hasn't been locked by other transactions, just read twice and the results are same
         // if the item has been locked by other transactions, then wait for lock and read new result.
         // first to get lock
+        // a READ lock on the table covers every row, including rows inserted
+        // by others before this transaction ends
         RMTable table = getTable(xid, tablename);
         synchronized (table) {
-            for (Iterator iter = table.keySet().iterator(); iter.hasNext(); ) {
-                Object key = iter.next();
-                ResourceItem item = table.get(key);
-                if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal)) {
-                    table.lock(key, LockManager.READ);
-                }
-            }
+            table.lockTable(LockManager.READ);
+            log(RedoLog.Record.lock(xid, tablename, null, LockManager.READ));
         }
 
         // then to read values
-        // remove old value
-        Hashtable xidtables = (Hashtable) tables.get(xid); // can not be null
-        synchronized (xidtables) {
-            xidtables.remove(tablename);
-        }
-        // read new value
-        table = getTable(xid, tablename);
         synchronized (table) {
             for (Iterator iter = table.keySet().iterator(); iter.hasNext(); ) {
                 Object key = iter.next();
@@ -391,15 +711,65 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                     result.add(item);
                 }
             }
-            if (!result.isEmpty()) {
-                if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-                    throw new RemoteException("System Error: Can't write table to disk!");
-                }
+        }
+        return result;
+    }
+
+    public ResourceItem queryReadOnly(int xid, String tablename, Object key) throws InvalidTransactionException,
+            RemoteException {
+        if (xid < 0) {
+            throw new InvalidTransactionException(xid, "Xid must be positive.");
+        }
+        RMTable table = readOnlyView(xid, tablename);
+        ResourceItem item;
+        if (multiversion) {
+            synchronized (prepared) {
+                awaitSnapshot(xid, tablename, key);
+                item = table.readSnapshot(key);
+            }
+        } else {
+            item = table.get(key);
+        }
+        return (item == null || item.isDeleted()) ? null : item;
+    }
+
+    public Collection<ResourceItem> queryReadOnly(int xid, String tablename, String indexName, Object indexVal)
+            throws InvalidTransactionException, InvalidIndexException, RemoteException {
+        if (xid < 0) {
+            throw new InvalidTransactionException(xid, "Xid must be positive.");
+        }
+        Collection<ResourceItem> result = new ArrayList<>();
+        RMTable table = readOnlyView(xid, tablename);
+        if (multiversion) {
+            synchronized (prepared) {
+                awaitSnapshot(xid, tablename, null);
+                readOnlyQuery(table, indexName, indexVal, result);
             }
+        } else {
+            readOnlyQuery(table, indexName, indexVal, result);
         }
         return result;
     }
 
+    private void readOnlyQuery(RMTable table, String indexName, Object indexVal, Collection<ResourceItem> result)
+            throws InvalidIndexException {
+        for (Iterator iter = table.snapshotKeySet().iterator(); iter.hasNext(); ) {
+            Object key = iter.next();
+            ResourceItem item = multiversion ? table.readSnapshot(key) : table.get(key);
+            if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal))
+                result.add(item);
+        }
+    }
+
+    // an empty table of the read-only transaction xid on top of the
+    // committed one, kept nowhere; its snapshot is its xid
+    protected RMTable readOnlyView(int xid, String tablename) {
+        RMTable table = new RMTable(tablename, getTable(tablename), xid, lm);
+        if (multiversion)
+            table.setSnapshot(new Long(xid));
+        return table;
+    }
+
     public boolean update(int xid, String tablename, Object key, ResourceItem newItem) throws DeadlockException,
             InvalidTransactionException, RemoteException {
         if (xid < 0) {
@@ -408,15 +778,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         if (!key.equals(newItem.getKey()))
             throw new IllegalArgumentException();
 
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
@@ -426,9 +788,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         if (item != null && !item.isDeleted()) {
             table.lock(key, LockManager.WRITE);
             table.put(newItem);
-            if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-                throw new RemoteException("System Error: Can't write table to disk!");
-            }
+            log(RedoLog.Record.write(xid, tablename, newItem));
             return true;
         }
         return false;
@@ -440,15 +800,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
 
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
@@ -460,9 +812,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         }
         table.lock(newItem.getKey(), LockManager.WRITE);
         table.put(newItem);
-        if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-            throw new RemoteException("System Error: Can't write table to disk!");
-        }
+        log(RedoLog.Record.write(xid, tablename, newItem));
         return true;
     }
 
@@ -472,15 +822,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
 
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
@@ -492,9 +834,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             item = (ResourceItem) item.clone();
             item.delete();
             table.put(item);
-            if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-                throw new RemoteException("System Error: Can't write table to disk!");
-            }
+            log(RedoLog.Record.write(xid, tablename, item));
             return true;
         }
         return false;
@@ -505,23 +845,18 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
-        try {
-            synchronized (xids) {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        } catch (TransactionManagerUnaccessibleException e) {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
 
-        int n = 0;
+        ArrayList<RedoLog.Record> records = new ArrayList<>();
 
+        // the scan reads the whole table and writes some rows of it
         RMTable table = getTable(xid, tablename);
         synchronized (table) {
+            table.lockTable(LockManager.READ_INTENTION_WRITE);
+            records.add(RedoLog.Record.lock(xid, tablename, null, LockManager.READ_INTENTION_WRITE));
             for (Iterator iter = table.keySet().iterator(); iter.hasNext(); ) {
                 Object key = iter.next();
                 ResourceItem item = table.get(key);
@@ -530,19 +865,15 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                     item = (ResourceItem) item.clone();
                     item.delete();
                     table.put(item);
-                    n++;
-                }
-            }
-            if (n > 0) {
-                if (!storeTable(table, new File("data/" + xid + "/" + tablename))) {
-                    throw new RemoteException("System Error: Can't write table to disk!");
+                    records.add(RedoLog.Record.write(xid, tablename, item));
                 }
             }
+            log(records.toArray(new RedoLog.Record[records.size()]));
         }
-        return n;
+        return records.size() - 1;
     }
 
-    public boolean prepare(int xid) throws InvalidTransactionException, RemoteException {
+    public int prepare(int xid) throws InvalidTransactionException, RemoteException {
         if (dieTime.equals("BeforePrepare"))
             dieNow();
 
@@ -550,16 +881,71 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
 
+        // rows read without locks must not have changed since
+        Hashtable xidtables = (Hashtable) tables.get(new Integer(xid));
+        if (xidtables != null) {
+            synchronized (xidtables) {
+                for (Iterator iter = xidtables.values().iterator(); iter.hasNext(); ) {
+                    RMTable xtable = (RMTable) iter.next();
+                    if (!xtable.hasUnlockedReads())
+                        continue;
+                    try {
+                        if (!xtable.validate()) {
+                            System.out.println("Validation failed: " + xid);
+                            return VOTE_NO;
+                        }
+                    } catch (DeadlockException e) {
+                        System.out.println("Validation deadlocked: " + xid);
+                        return VOTE_NO;
+                    }
+                    // the read locks are taken again on recovery
+                    log(lockRecords(xid, xtable.getTablename(), xtable.readKeySet(), LockManager.READ));
+                }
+            }
+        }
+
+        // the prepared state must survive a crash
+        boolean readOnly = !wroteOrValidated(xidtables);
+        if (!readOnly && !redoLog.force()) {
+            System.out.println("Can't force the redo log: " + xid);
+            return VOTE_NO;
+        }
+
         // AfterPrepare: die after it has entered the prepared state, but just before it
         //     * could reply "prepared" to the TM.
         if (dieTime.equals("AfterPrepare"))
             dieNow();
 
+        // nothing to commit here: release the transaction now, all its
+        // locks have been taken. Not if it read optimistically, other RMs
+        // may not have validated yet.
+        if (readOnly) {
+            forget(xid);
+            System.out.println("Prepared read-only: " + xid);
+            return VOTE_READ_ONLY;
+        }
+
+        synchronized (prepared) {
+            prepared.put(new Integer(xid), xidtables);
+        }
         System.out.println("Prepared: " + xid);
-        return true;
+        return VOTE_PREPARED;
     }
 
-    public void commit(int xid) throws InvalidTransactionException, RemoteException {
+    private boolean wroteOrValidated(Hashtable xidtables) {
+        if (xidtables == null)
+            return false;
+        synchronized (xidtables) {
+            for (Iterator iter = xidtables.values().iterator(); iter.hasNext(); ) {
+                RMTable xtable = (RMTable) iter.next();
+                if (!xtable.writtenKeySet().isEmpty() || xtable.hasUnlockedReads())
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    public void commit(int xid, long seq, long oldest) throws InvalidTransactionException, RemoteException {
         if (dieTime.equals("BeforeCommit"))
             dieNow();
         if (xid < 0) {
@@ -567,62 +953,98 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         }
         Hashtable xidtables = (Hashtable) tables.get(new Integer(xid));
         if (xidtables != null) {
+            synchronized (prepared) {
+                log(RedoLog.Record.commit(xid, seq));
+                committing.add(new Integer(xid));
+            }
+            // the TM forgets xid once we return, and others must not see
+            // the commit before it is on disk. If it can't be synced, xid
+            // stays prepared, with its locks, until the TM tells it again.
+            if (!redoLog.force())
+                throw new RemoteException("System Error: Can't sync the redo log!");
             synchronized (xidtables) {
-                for (Iterator iter = xidtables.entrySet().iterator(); iter.hasNext(); ) {
-                    Map.Entry entry = (Map.Entry) iter.next();
-                    RMTable xtable = (RMTable) entry.getValue();
-                    RMTable table = getTable(xtable.getTablename());
-                    for (Iterator iter2 = xtable.keySet().iterator(); iter2.hasNext(); ) {
-                        Object key = iter2.next();
-                        ResourceItem item = xtable.get(key);
-                        if (item.isDeleted())
-                            table.remove(item);
-                        else
-                            table.put(item);
-                    }
-                    if (!storeTable(table, new File("data/" + entry.getKey())))
-                        throw new RemoteException("Can't write table to disk");
-                    new File("data/" + xid + "/" + entry.getKey()).delete();
+                // snapshots see all or nothing of a commit: those waiting
+                // for it read once all its writes are in
+                synchronized (prepared) {
+                    setOldestSnapshot(oldest);
+                    apply(xidtables, seq);
+                    committing.remove(new Integer(xid));
+                    prepared.remove(new Integer(xid));
+                    prepared.notifyAll();
                 }
-                new File("data/" + xid).delete();
                 tables.remove(new Integer(xid));
             }
         }
 
+        firstSegments.remove(new Integer(xid));
+
         if (!lm.unlockAll(xid))
             throw new RuntimeException();
 
         synchronized (xids) {
             xids.remove(new Integer(xid));
+            enlisted.remove(new Integer(xid));
         }
 
         System.out.println("Commit xid: " + xid);
     }
 
+    // puts the writes of a transaction into the committed tables as commit
+    // number seq, called with prepared locked
+    protected void apply(Hashtable xidtables, long seq) {
+        long oldest = oldestSnapshot;
+        for (Iterator iter = xidtables.values().iterator(); iter.hasNext(); ) {
+            RMTable xtable = (RMTable) iter.next();
+            RMTable table = getTable(xtable.getTablename());
+            if (!xtable.writtenKeySet().isEmpty())
+                dirty.add(xtable.getTablename());
+            for (Iterator iter2 = xtable.writtenKeySet().iterator(); iter2.hasNext(); ) {
+                Object key = iter2.next();
+                ResourceItem item = xtable.get(key);
+                if (item.isDeleted())
+                    table.removeCommitted(key, seq, oldest);
+                else
+                    table.putCommitted(item, seq, oldest);
+            }
+        }
+    }
+
     public void abort(int xid) throws InvalidTransactionException, RemoteException {
         if (dieTime.equals("BeforeAbort"))
             dieNow();
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
+        forget(xid);
+        System.out.println("Abort xid: " + xid);
+    }
+
+    // drops the tables and locks of xid; they are dropped even if
+    // the abort record can't be logged
+    protected void forget(int xid) throws RemoteException {
         Hashtable xidtables = (Hashtable) tables.get(new Integer(xid));
-        if (xidtables != null) {
-            synchronized (xidtables) {
-                for (Iterator iter = xidtables.entrySet().iterator(); iter.hasNext(); ) {
-                    Map.Entry entry = (Map.Entry) iter.next();
-                    new File("data/" + xid + "/" + entry.getKey()).delete();
+        try {
+            if (xidtables != null) {
+                synchronized (xidtables) {
+                    tables.remove(new Integer(xid));
+                    // without it recovery would ask the TM, which says aborted
+                    log(RedoLog.Record.abort(xid));
                 }
-                new File("data/" + xid).delete();
-                tables.remove(new Integer(xid));
             }
-        }
+        } finally {
+            firstSegments.remove(new Integer(xid));
+            synchronized (prepared) {
+                if (prepared.remove(new Integer(xid)) != null)
+                    prepared.notifyAll();
+            }
 
-        if (!lm.unlockAll(xid))
-            throw new RuntimeException();
+            if (!lm.unlockAll(xid))
+                throw new RuntimeException();
 
-        synchronized (xids) {
-            xids.remove(new Integer(xid));
+            synchronized (xids) {
+                xids.remove(new Integer(xid));
+                enlisted.remove(new Integer(xid));
+            }
         }
-        System.out.println("Abort xid: " + xid);
     }
 }
\ No newline at end of file
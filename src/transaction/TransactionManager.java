@@ -53,6 +53,31 @@ public interface TransactionManager extends Remote {
     public int start()
             throws RemoteException;
 
+    /**
+     * Allocates an xid for a read-only transaction; it needs no two-phase
+     * commit. The xid is also its snapshot: with -DconcurrencyControl=mvcc
+     * RMs it reads the commits numbered below it, those decided before it
+     * started. The TM keeps the versions it may read until endReadOnly, or
+     * for -DreadOnlyTimeout seconds if it is abandoned.
+     */
+    public int startReadOnly()
+            throws RemoteException;
+
+    /**
+     * Ends the read-only transaction xid; the versions only it could read
+     * may go.
+     */
+    public void endReadOnly(int xid)
+            throws RemoteException;
+
+    /**
+     * @return the commit sequence number of the committed transaction xid,
+     * for an RM that learns it committed when it enlists again; 0 if the TM
+     * no longer knows it
+     */
+    public long getCommitSeq(int xid)
+            throws RemoteException;
+
     /**
      * Commit transaction.
      *
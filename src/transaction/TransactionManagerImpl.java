@@ -1,11 +1,14 @@
 package transaction;
 
 import java.io.File;
+import java.io.IOException;
 import java.rmi.Naming;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Transaction Manager for the Distributed Travel Reservation System.
@@ -18,6 +21,8 @@ public class TransactionManagerImpl
         implements TransactionManager {
 
     private Integer xidCounter; // allocate unique id
+    // guards xidCounter, which is replaced on every increment
+    private final Object xidCounterLock = new Object();
     private String dieTime; // dieTime flag
     // resource managers of all transactions
     private HashMap<Integer, HashSet<ResourceManager>> RMs = new HashMap<>();
@@ -25,11 +30,35 @@ public class TransactionManagerImpl
     private HashMap<Integer, String> xids = new HashMap<>();
     // transaction to be recovered after some RMs died or TM died
     private HashMap<Integer, Integer> xids_to_be_recovered = new HashMap<>();
+    // commit sequence numbers of the committed transactions not yet done
+    // or to be recovered, guarded by xids_to_be_recovered
+    private HashMap<Integer, Integer> commitSeqs = new HashMap<>();
+    // read-only transactions -> when they started, guarded by
+    // xidCounterLock; not logged, a restarted TM lets their versions go
+    private HashMap<Integer, Long> readOnlyXids = new HashMap<>();
 
     //log path
     private String xidCounterPath = "xidCounter.log";
-    private String xidsStatusPath = "xidsStatus.log";
-    private String xidsToBeRecoveredPath = "xidsToBeRecovered.log";
+    private String xidsStatusPath = "xidsStatus";
+
+    // changes of xids and xids_to_be_recovered; created by recover()
+    private XidLog xidLog;
+
+    // -DgroupCommitDelay=ms lets a commit wait up to ms milliseconds for
+    // others to share its sync of the status log
+    private final static long GROUP_COMMIT_DELAY = Long.getLong("groupCommitDelay", 0).longValue();
+
+    // -DreadOnlyTimeout=s lets the versions a read-only transaction reads
+    // go s seconds after it started, if it has not ended by then
+    private final static long READ_ONLY_TIMEOUT = Long.getLong("readOnlyTimeout", 600).longValue();
+
+    // makes the commit decisions in xids durable, one sync for all
+    // transactions committing at the same time
+    private GroupCommit statusLog = new GroupCommit(new GroupCommit.Log() {
+        public void sync() throws IOException {
+            xidLog.force();
+        }
+    }, GROUP_COMMIT_DELAY);
 
     public TransactionManagerImpl() throws RemoteException {
         xidCounter = 1;
@@ -70,26 +99,30 @@ public class TransactionManagerImpl
         if (xidCounterTmp != null)
             xidCounter = (Integer) xidCounterTmp;
 
-        Object xidsToDo = utils.loadObject("data/" + xidsToBeRecoveredPath);
-        if (xidsToDo != null)
-            xids_to_be_recovered = (HashMap<Integer, Integer>) xidsToDo;
-
-        Object xidsTmp = utils.loadObject("data/" + xidsStatusPath);
-        if (xidsTmp != null) {
-            HashMap<Integer, String> xids_to_be_done = (HashMap<Integer, String>) xidsTmp;
-            System.out.println("Redo logs");
-            for (Integer xidTmp : xids_to_be_done.keySet()) {
-                String[] vals = xids_to_be_done.get(xidTmp).split("_");
-                String status = vals[0];
-                int rm_num = Integer.parseInt(vals[1]);
-                if (status.equals(COMMITTED)) {
-                    // redo_logs
-                    setRecoveryLater(xidTmp, rm_num);
-                }
-                // else, simply abort. The rms will be informed to abort transaction when they enlist
+        xidLog = new XidLog("data/" + xidsStatusPath);
+        try {
+            xidLog.replay();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        xids_to_be_recovered = xidLog.getToBeRecovered();
+
+        HashMap<Integer, String> xids_to_be_done = xidLog.getStatuses();
+        System.out.println("Redo logs");
+        for (Integer xidTmp : xids_to_be_done.keySet()) {
+            String[] vals = xids_to_be_done.get(xidTmp).split("_");
+            String status = vals[0];
+            int rm_num = Integer.parseInt(vals[1]);
+            if (status.equals(COMMITTED)) {
+                // redo_logs
+                setRecoveryLater(xidTmp, rm_num);
             }
-            System.out.println("Finish redo logs.");
+            // else, simply abort. The rms will be informed to abort transaction when they enlist
+            xidLog.done(xidTmp);
         }
+        // those of the committed ones, now to be recovered
+        commitSeqs = xidLog.getCommitSeqs();
+        System.out.println("Finish redo logs.");
     }
 
     public void ping() throws RemoteException {
@@ -99,12 +132,13 @@ public class TransactionManagerImpl
         if (xids_to_be_recovered.containsKey(xid)) {
             int num = xids_to_be_recovered.get(xid);
             synchronized (xids_to_be_recovered) {
-                if (num > 1)
+                if (num > 1) {
                     xids_to_be_recovered.put(xid, num - 1);
+                    xidLog.toBeRecovered(xid, num - 1);
+                }
 //                else
 //                    // do not remove this transaction id if rm dies after receiving the committed message.
 //                    xids_to_be_recovered.remove(xid);
-                utils.storeObject(xids_to_be_recovered, xidsToBeRecoveredPath);
             }
             return COMMITTED;
         }
@@ -118,22 +152,47 @@ public class TransactionManagerImpl
             xidRMs.add(rm);
             synchronized (xids) {
                 xids.put(xid, INITED + "_" + xidRMs.size());
-                utils.storeObject(xids, "data/" + xidsStatusPath);
+                xidLog.status(xid, INITED, xidRMs.size());
             }
         }
         return INITED;
     }
 
+    // the next number of xidCounter, which also numbers the commits;
+    // called with xidCounterLock held
+    private Integer nextXid() {
+        Integer newXid = xidCounter++;
+        utils.storeObject(xidCounter, "data/" + xidCounterPath);
+        return newXid;
+    }
+
+    // the oldest snapshot a read-only transaction still reads at, latest
+    // if none is older; forgets those that timed out. Called with
+    // xidCounterLock held.
+    private int oldestReadOnly(int latest) {
+        long expired = System.currentTimeMillis() - READ_ONLY_TIMEOUT * 1000;
+        int oldest = latest;
+        for (Iterator<Map.Entry<Integer, Long>> iter = readOnlyXids.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<Integer, Long> entry = iter.next();
+            if (entry.getValue().longValue() < expired) {
+                System.out.println("Read-only xid timed out: " + entry.getKey());
+                iter.remove();
+            } else {
+                oldest = Math.min(oldest, entry.getKey().intValue());
+            }
+        }
+        return oldest;
+    }
+
     @Override
     public int start() throws RemoteException {
-        synchronized (xidCounter) {
-            Integer newXid = xidCounter++;
-            utils.storeObject(xidCounter, "data/" + xidCounterPath);
+        synchronized (xidCounterLock) {
+            Integer newXid = nextXid();
 
             // store xid
             synchronized (xids) {
                 xids.put(newXid, INITED + "_" + 0);
-                utils.storeObject(xids, "data/" + xidsStatusPath);
+                xidLog.status(newXid, INITED, 0);
             }
 
             synchronized (RMs) {
@@ -144,6 +203,30 @@ public class TransactionManagerImpl
         }
     }
 
+    @Override
+    public int startReadOnly() throws RemoteException {
+        synchronized (xidCounterLock) {
+            Integer newXid = nextXid();
+            readOnlyXids.put(newXid, new Long(System.currentTimeMillis()));
+            return newXid;
+        }
+    }
+
+    @Override
+    public void endReadOnly(int xid) throws RemoteException {
+        synchronized (xidCounterLock) {
+            readOnlyXids.remove(xid);
+        }
+    }
+
+    @Override
+    public long getCommitSeq(int xid) throws RemoteException {
+        synchronized (xids_to_be_recovered) {
+            Integer seq = commitSeqs.get(xid);
+            return (seq == null) ? 0 : seq.intValue();
+        }
+    }
+
     @Override
     public boolean commit(int xid) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         if (!xids.containsKey(xid))
@@ -153,43 +236,75 @@ public class TransactionManagerImpl
         // prepare phase
         synchronized (xids) {
             xids.put(xid, PREPARING + "_" + xidRMs.size());
-            utils.storeObject(xids, "data/" + xidsStatusPath);
+            xidLog.status(xid, PREPARING, xidRMs.size());
         }
+        // rms the transaction wrote at, the others have released it
+        HashSet<ResourceManager> preparedRMs = new HashSet<>();
         for (ResourceManager rm : xidRMs) {
+            int vote;
             try {
                 System.out.println("call rm prepare: " + xid + ": " + rm.getID());
-                if (!rm.prepare(xid)) {
-                    // rm is not prepared.
-                    this.abort(xid);
-                    throw new TransactionAbortedException(xid, "RM aborted");
-                }
+                vote = rm.prepare(xid);
             } catch (Exception e) {
                 // rm dies before or during prepare
                 System.out.println("rm prepare failed: " + rm);
                 e.printStackTrace();
+                vote = ResourceManager.VOTE_NO;
+            }
+            if (vote == ResourceManager.VOTE_NO) {
+                // rm is not prepared, e.g. an optimistic read is stale
                 this.abort(xid);
                 throw new TransactionAbortedException(xid, "RM aborted");
             }
+            if (vote == ResourceManager.VOTE_PREPARED)
+                preparedRMs.add(rm);
         }
         // prepared, die before commit if needed
         if (dieTime.equals("BeforeCommit"))
             dieNow();
 
+        // number the commit after every snapshot already started, and
+        // before any started later; the RMs keep the versions the oldest
+        // snapshot still reads
+        int seq;
+        int oldestSnapshot;
+        synchronized (xidCounterLock) {
+            seq = nextXid().intValue();
+            oldestSnapshot = oldestReadOnly(seq);
+        }
+
         // log commit with xid
         synchronized (xids) {
-            xids.put(xid, COMMITTED + "_" + xidRMs.size());
-            utils.storeObject(xids, "data/" + xidsStatusPath);
+            xids.put(xid, COMMITTED + "_" + preparedRMs.size());
+        }
+        synchronized (xids_to_be_recovered) {
+            commitSeqs.put(xid, seq);
+        }
+        try {
+            if (!xidLog.commitSeq(xid, seq) || !xidLog.status(xid, COMMITTED, preparedRMs.size()))
+                throw new IOException("Can't write the xid log");
+            // with no rm to redo the commit there is nothing to lose
+            if (!preparedRMs.isEmpty())
+                statusLog.commit();
+        } catch (IOException e) {
+            // not decided until it is on disk
+            System.out.println("commit log failed: " + e);
+            synchronized (xids_to_be_recovered) {
+                commitSeqs.remove(xid);
+            }
+            this.abort(xid);
+            throw new TransactionAbortedException(xid, "Can't log the commit");
         }
 
         // die after commit log was written if needed.
         if (dieTime.equals("AfterCommit"))
             dieNow();
 
-        // commit phase
-        for (ResourceManager rm : xidRMs) {
+        // commit phase, skipped by read-only rms
+        for (ResourceManager rm : preparedRMs) {
             try {
                 System.out.println("call rm commit " + xid + ": " + rm.getID());
-                rm.commit(xid); // the function return means done signal.
+                rm.commit(xid, seq, oldestSnapshot); // the function return means done signal.
             } catch (Exception e) {
                 // rm dies before or during commit
                 System.out.println("rm is down before commit: " + rm);
@@ -207,7 +322,11 @@ public class TransactionManagerImpl
         }
         synchronized (xids) {
             xids.remove(xid);
-            utils.storeObject(xids, "data/" + xidsStatusPath);
+            xidLog.done(xid);
+        }
+        synchronized (xids_to_be_recovered) {
+            if (!xids_to_be_recovered.containsKey(xid))
+                commitSeqs.remove(xid);
         }
 
         System.out.println("Commit xid: " + xid);
@@ -224,7 +343,7 @@ public class TransactionManagerImpl
             } else {
                 xids_to_be_recovered.put(xid, num);
             }
-            utils.storeObject(xids_to_be_recovered, xidsToBeRecoveredPath);
+            xidLog.toBeRecovered(xid, xids_to_be_recovered.get(xid));
         }
     }
 
@@ -250,7 +369,7 @@ public class TransactionManagerImpl
         synchronized (xids) {
             if (xids.containsKey(xid)) {
                 xids.remove(xid);
-                utils.storeObject(xids, "data/" + xidsStatusPath);
+                xidLog.done(xid);
             }
         }
 
@@ -48,6 +48,22 @@ public interface WorkflowController extends Remote {
     public int start()
             throws RemoteException;
 
+    /**
+     * Start a new read-only transaction, and return its transaction id. It
+     * may only call the query methods; they take no locks and leave no
+     * trace on disk, and commit or abort just ends it, without two-phase
+     * commit. With -DconcurrencyControl=mvcc RMs, every query sees what
+     * was committed when the transaction started, at all RMs alike: all of
+     * a transaction committed before, none of one committed after.
+     * Otherwise each query sees what was last committed. One left open
+     * longer than the TM's -DreadOnlyTimeout may fail its queries.
+     *
+     * @return A unique transaction ID > 0.
+     * @throws RemoteException on communications failure.
+     */
+    public int startReadOnly()
+            throws RemoteException;
+
     /**
      * Commit transaction.
      *
@@ -1,6 +1,7 @@
 package transaction;
 
 import lockmgr.DeadlockException;
+import lockmgr.LockManager;
 import transaction.entity.*;
 
 import java.rmi.Naming;
@@ -24,6 +25,8 @@ public class WorkflowControllerImpl
 
     protected TransactionManager tm = null;
     private HashSet<Integer> xids = new HashSet<>();
+    // read-only transactions, not logged; the TM keeps their snapshots
+    private HashSet<Integer> readOnlyXids = new HashSet<>();
     private ResourceManager rmFlights = null;
     private ResourceManager rmRooms = null;
     private ResourceManager rmCars = null;
@@ -79,13 +82,42 @@ public class WorkflowControllerImpl
         return xid;
     }
 
+    public int startReadOnly()
+            throws RemoteException {
+        int xid = tm.startReadOnly();
+        synchronized (readOnlyXids) {
+            readOnlyXids.add(xid);
+        }
+        return xid;
+    }
+
+    // ends a read-only transaction at the TM, false if xid is not one
+    private boolean endReadOnly(int xid) throws RemoteException {
+        synchronized (readOnlyXids) {
+            if (!readOnlyXids.remove(xid))
+                return false;
+        }
+        tm.endReadOnly(xid);
+        return true;
+    }
+
     public boolean commit(int xid)
             throws RemoteException,
             TransactionAbortedException,
             InvalidTransactionException {
+        if (endReadOnly(xid))
+            return true;
         if (!xids.contains(xid))
             throw new InvalidTransactionException(xid, "");
-        boolean tmResult = tm.commit(xid);
+        boolean tmResult;
+        try {
+            tmResult = tm.commit(xid);
+        } catch (TransactionAbortedException e) {
+            // an RM voted no, the TM has aborted it
+            xids.remove(xid);
+            utils.storeObject(xids, xidsLog);
+            throw e;
+        }
         xids.remove(xid);
         utils.storeObject(xids, xidsLog);
         return tmResult;
@@ -94,6 +126,8 @@ public class WorkflowControllerImpl
     public void abort(int xid)
             throws RemoteException,
             InvalidTransactionException {
+        if (endReadOnly(xid))
+            return;
         if (!xids.contains(xid))
             throw new InvalidTransactionException(xid, "");
         tm.abort(xid);
@@ -110,7 +144,7 @@ public class WorkflowControllerImpl
         if (flightNum == null || numSeats < 0)
             return false;
         // check whether is flight exists or not
-        ResourceItem item = queryItem(rmFlights, xid, flightNum);
+        ResourceItem item = queryItemForUpdate(rmFlights, xid, flightNum);
 
         if (item != null) { // exist, then update
             Flight f = (Flight) item;
@@ -149,7 +183,7 @@ public class WorkflowControllerImpl
                     Reservation.INDEX_RESERV_KEY, flightNum);
             if (!resvs.isEmpty())
                 return false;
-            ResourceItem item = queryItem(rmFlights, xid, flightNum);
+            ResourceItem item = queryItemForUpdate(rmFlights, xid, flightNum);
             if (item == null)
                 return false;
             rmFlights.delete(xid, rmFlights.getID(), flightNum);
@@ -167,12 +201,48 @@ public class WorkflowControllerImpl
             throws RemoteException,
             TransactionAbortedException,
             InvalidTransactionException {
+        return queryItem(rm, xid, key, false);
+    }
+
+    // for items the caller is going to update: the UPDATE lock keeps other
+    // updaters out, so they do not all convert READ to WRITE and deadlock
+    private ResourceItem queryItemForUpdate(ResourceManager rm, int xid, String key)
+            throws RemoteException,
+            TransactionAbortedException,
+            InvalidTransactionException {
+        return queryItem(rm, xid, key, true);
+    }
+
+    // reads an item for a query method, which may belong to a read-only
+    // transaction
+    private ResourceItem lookUp(ResourceManager rm, int xid, String key)
+            throws RemoteException,
+            TransactionAbortedException,
+            InvalidTransactionException {
+        if (!isReadOnly(xid))
+            return queryItem(rm, xid, key);
+        return rm.queryReadOnly(xid, rm.getID(), key);
+    }
+
+    private boolean isReadOnly(int xid) {
+        synchronized (readOnlyXids) {
+            return readOnlyXids.contains(xid);
+        }
+    }
+
+    private ResourceItem queryItem(ResourceManager rm, int xid, String key, boolean forUpdate)
+            throws RemoteException,
+            TransactionAbortedException,
+            InvalidTransactionException {
         if (!xids.contains(xid))
             throw new InvalidTransactionException(xid, "");
 
         ResourceItem item = null;
         try {
-            item = rm.query(xid, rm.getID(), key);
+            if (forUpdate)
+                item = rm.queryForUpdate(xid, rm.getID(), key);
+            else
+                item = rm.query(xid, rm.getID(), key);
         } catch (DeadlockException e) {
             // dead lock happened, quit this transaction
             abort(xid);
@@ -188,7 +258,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (location == null || numRooms < 0) // see interface doc for requirement
             return false;
-        ResourceItem item = queryItem(rmRooms, xid, location);
+        ResourceItem item = queryItemForUpdate(rmRooms, xid, location);
 
         if (item != null) {
             Hotel h = (Hotel) item;
@@ -224,7 +294,7 @@ public class WorkflowControllerImpl
             throw new InvalidTransactionException(xid, "");
         if (numRooms < 0)
             return false;
-        ResourceItem item = queryItem(rmRooms, xid, location);
+        ResourceItem item = queryItemForUpdate(rmRooms, xid, location);
         if (item == null)
             return false;
         Hotel h = (Hotel) (item);
@@ -247,7 +317,7 @@ public class WorkflowControllerImpl
         if (location == null || numCars < 0)
             return false;
 
-        ResourceItem item = queryItem(rmCars, xid, location);
+        ResourceItem item = queryItemForUpdate(rmCars, xid, location);
 
         if (item != null) {
             Car c = (Car) item;
@@ -283,7 +353,7 @@ public class WorkflowControllerImpl
             throw new InvalidTransactionException(xid, "");
         if (numCars < 0)
             return false;
-        ResourceItem item = queryItem(rmCars, xid, location);
+        ResourceItem item = queryItemForUpdate(rmCars, xid, location);
         if (item == null)
             return false;
         Car c = (Car) item;
@@ -326,19 +396,19 @@ public class WorkflowControllerImpl
             String resvKey = rvt.getResvKey();
             switch (rvt.getResvType()) {
                 case Reservation.RESERVATION_TYPE_FLIGHT: {
-                    Flight f = (Flight) queryItem(rmFlights, xid, resvKey);
+                    Flight f = (Flight) queryItemForUpdate(rmFlights, xid, resvKey);
                     f.unbookSeats(1);
                     rmFlights.update(xid, rmFlights.getID(), resvKey, f);
                     break;
                 }
                 case Reservation.RESERVATION_TYPE_CAR: {
-                    Car c = (Car) queryItem(rmCars, xid, resvKey);
+                    Car c = (Car) queryItemForUpdate(rmCars, xid, resvKey);
                     c.unbookCars(1);
                     rmCars.update(xid, rmCars.getID(), resvKey, c);
                     break;
                 }
                 case Reservation.RESERVATION_TYPE_HOTEL: {
-                    Hotel h = (Hotel) queryItem(rmRooms, xid, resvKey);
+                    Hotel h = (Hotel) queryItemForUpdate(rmRooms, xid, resvKey);
                     h.unbookRooms(1);
                     rmRooms.update(xid, rmRooms.getID(), resvKey, h);
                 }
@@ -352,7 +422,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (custName == null)
             return false;
-        ResourceItem item = queryItem(rmCustomers, xid, custName);
+        ResourceItem item = queryItemForUpdate(rmCustomers, xid, custName);
         if (item == null)
             return false;
         try {
@@ -385,7 +455,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (flightNum == null)
             return -1;
-        ResourceItem item = queryItem(rmFlights, xid, flightNum);
+        ResourceItem item = lookUp(rmFlights, xid, flightNum);
         if (item == null)
             return -1;
         return ((Flight) item).getNumAvail();
@@ -397,7 +467,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (flightNum == null)
             return -1;
-        ResourceItem item = queryItem(rmFlights, xid, flightNum);
+        ResourceItem item = lookUp(rmFlights, xid, flightNum);
         if (item == null)
             return -1;
         return ((Flight) item).getPrice();
@@ -409,7 +479,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (location == null)
             return -1;
-        ResourceItem item = queryItem(rmRooms, xid, location);
+        ResourceItem item = lookUp(rmRooms, xid, location);
         if (item == null)
             return -1;
         return ((Hotel) item).getNumAvail();
@@ -421,7 +491,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (location == null)
             return -1;
-        ResourceItem item = queryItem(rmRooms, xid, location);
+        ResourceItem item = lookUp(rmRooms, xid, location);
         if (item == null)
             return -1;
         return ((Hotel) item).getPrice();
@@ -433,7 +503,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (location == null)
             return -1;
-        ResourceItem item = queryItem(rmCars, xid, location);
+        ResourceItem item = lookUp(rmCars, xid, location);
         if (item == null)
             return -1;
         return ((Car) item).getNumAvail();
@@ -445,7 +515,7 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (location == null)
             return -1;
-        ResourceItem item = queryItem(rmCars, xid, location);
+        ResourceItem item = lookUp(rmCars, xid, location);
         if (item == null)
             return -1;
         return ((Car) item).getPrice();
@@ -457,13 +527,17 @@ public class WorkflowControllerImpl
             InvalidTransactionException {
         if (custName == null)
             return -1;
-        ResourceItem item = queryItem(rmCustomers, xid, custName);
+        ResourceItem item = lookUp(rmCustomers, xid, custName);
         if (item == null)
             return -1;
         Collection<ResourceItem> results = null;
         try {
-            results = rmCustomers.query(xid, ResourceManager.TableNameReservations,
-                    Reservation.INDEX_CUSTNAME, custName);
+            if (isReadOnly(xid))
+                results = rmCustomers.queryReadOnly(xid, ResourceManager.TableNameReservations,
+                        Reservation.INDEX_CUSTNAME, custName);
+            else
+                results = rmCustomers.query(xid, ResourceManager.TableNameReservations,
+                        Reservation.INDEX_CUSTNAME, custName);
         } catch (DeadlockException e) {
             // dead lock happened, quit this transaction
             abort(xid);
@@ -492,7 +566,7 @@ public class WorkflowControllerImpl
         ResourceItem cust = queryItem(rmCustomers, xid, custName);
         if (cust == null)
             return false;
-        ResourceItem flight = queryItem(rmFlights, xid, flightNum);
+        ResourceItem flight = queryItemForUpdate(rmFlights, xid, flightNum);
         if (flight == null)
             return false;
         Flight f = (Flight) flight;
@@ -520,7 +594,7 @@ public class WorkflowControllerImpl
         ResourceItem cust = queryItem(rmCustomers, xid, custName);
         if (cust == null)
             return false;
-        ResourceItem car = queryItem(rmCars, xid, location);
+        ResourceItem car = queryItemForUpdate(rmCars, xid, location);
         if (car == null)
             return false;
         Car c = (Car) car;
@@ -549,7 +623,7 @@ public class WorkflowControllerImpl
         ResourceItem cust = queryItem(rmCustomers, xid, custName);
         if (cust == null)
             return false;
-        ResourceItem hotel = queryItem(rmRooms, xid, location);
+        ResourceItem hotel = queryItemForUpdate(rmRooms, xid, location);
         if (hotel == null)
             return false;
 
@@ -577,14 +651,24 @@ public class WorkflowControllerImpl
             throw new InvalidTransactionException(xid, "");
         if (custName == null || location == null || flightNumList == null)
             return false;
-        ResourceItem cust = queryItem(rmCustomers, xid, custName);
+        ResourceItem cust = queryItemForUpdate(rmCustomers, xid, custName);
         if (cust == null)
             return false;
 
+        // lock the flights in one go: two itineraries listing the same
+        // flights in different orders would deadlock locking them one by one
+        try {
+            rmFlights.lockAll(xid, rmFlights.getID(), flightNumList, LockManager.UPDATE);
+        } catch (DeadlockException e) {
+            // dead lock happened, quit this transaction
+            abort(xid);
+            throw new TransactionAbortedException(xid, "This transaction cause dead lock: " + e.getMessage());
+        }
+
         // check flights
         for (Object flight : flightNumList) {
             String flightNum = (String) flight;
-            ResourceItem item = queryItem(rmFlights, xid, flightNum);
+            ResourceItem item = queryItemForUpdate(rmFlights, xid, flightNum);
             if (item == null)
                 return false;
             Flight f = (Flight) item;
@@ -593,7 +677,7 @@ public class WorkflowControllerImpl
         }
         // check rooms
         if (needRoom) {
-            ResourceItem item = queryItem(rmRooms, xid, location);
+            ResourceItem item = queryItemForUpdate(rmRooms, xid, location);
             if (item == null)
                 return false;
             Hotel h = (Hotel) item;
@@ -602,7 +686,7 @@ public class WorkflowControllerImpl
         }
         // check cars
         if (needCar) {
-            ResourceItem item = queryItem(rmCars, xid, location);
+            ResourceItem item = queryItemForUpdate(rmCars, xid, location);
             if (item == null)
                 return false;
             Car c = (Car) item;
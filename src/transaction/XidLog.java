@@ -0,0 +1,283 @@
+package transaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Append-only log of the status of the TM's transactions, in place of the
+ * xids map rewritten whole on every change. Each change of status is a
+ * fixed-size record of xid, status and number of RMs stored into a
+ * memory-mapped segment file, so it costs the same however many
+ * transactions are active, and is not lost if the TM dies; force() puts it
+ * on disk.
+ * <p>
+ * The log keeps the status of each transaction it has not yet been told is
+ * done. Once a segment is full, the next one starts with those statuses,
+ * and the older segments are deleted.
+ */
+public class XidLog {
+    private static final int INITED = 1;
+    private static final int PREPARING = 2;
+    private static final int COMMITTED = 3;
+    // the transaction ended
+    private static final int DONE = 4;
+    // count is the number of RMs still to be told it committed
+    private static final int TO_BE_RECOVERED = 5;
+    // count is the commit sequence number of the committed transaction
+    private static final int COMMIT_SEQ = 6;
+
+    private static final String[] STATUSES = {null, TransactionManager.INITED, TransactionManager.PREPARING,
+            TransactionManager.COMMITTED};
+
+    // xid, status, count and a check of the three, as ints
+    private static final int RECORD_SIZE = 16;
+
+    private static final int SEGMENT_SIZE = 1 << 20;
+
+    // a zeroed record, where the segment ends, fails the check
+    private static final int CHECK_SEED = 0x5EC0DE;
+
+    private File dir;
+
+    // segment files are named prefix + n + ".log"
+    private String prefix;
+
+    private int segment;
+
+    private MappedByteBuffer buffer;
+
+    // where the next record goes in buffer
+    private int position;
+
+    // xid -> {status, count} of the transactions not done
+    private HashMap<Integer, int[]> statuses = new HashMap<Integer, int[]>();
+
+    private HashMap<Integer, Integer> toBeRecovered = new HashMap<Integer, Integer>();
+
+    // xid -> commit sequence number, while the transaction is not done or
+    // is to be recovered
+    private HashMap<Integer, Integer> commitSeqs = new HashMap<Integer, Integer>();
+
+    public XidLog(String path) {
+        File f = new File(path).getAbsoluteFile();
+        this.dir = f.getParentFile();
+        this.prefix = f.getName() + ".";
+    }
+
+    /**
+     * Reads back the statuses in the log, and opens it for appending. A
+     * record the TM died in the middle of writing, and anything after it,
+     * is dropped.
+     */
+    public synchronized void replay() throws IOException {
+        int[] segments = segments();
+        for (int i = 0; i < segments.length; i++) {
+            MappedByteBuffer b = map(segments[i], 0);
+            int p = 0;
+            while (p + RECORD_SIZE <= b.capacity()) {
+                int xid = b.getInt(p);
+                int status = b.getInt(p + 4);
+                int count = b.getInt(p + 8);
+                if (b.getInt(p + 12) != check(xid, status, count))
+                    break;
+                redo(xid, status, count);
+                p += RECORD_SIZE;
+            }
+            segment = segments[i];
+            buffer = b;
+            position = p;
+        }
+        // the last one may be too full for all statuses to be restated
+        rollOver();
+    }
+
+    /**
+     * Logs that xid has the given status, one of TransactionManager.INITED,
+     * PREPARING or COMMITTED, with rms RMs enlisted.
+     *
+     * @return false if it could not be written
+     */
+    public synchronized boolean status(int xid, String status, int rms) {
+        return append(xid, Arrays.asList(STATUSES).indexOf(status), rms);
+    }
+
+    /**
+     * Logs that xid committed or aborted, and is no longer of interest.
+     */
+    public synchronized boolean done(int xid) {
+        return append(xid, DONE, 0);
+    }
+
+    /**
+     * Logs that xid commits as commit sequence number seq; log it before
+     * the COMMITTED status.
+     */
+    public synchronized boolean commitSeq(int xid, int seq) {
+        return append(xid, COMMIT_SEQ, seq);
+    }
+
+    /**
+     * Logs that count RMs of the committed xid have yet to learn so when
+     * they enlist again.
+     */
+    public synchronized boolean toBeRecovered(int xid, int count) {
+        return append(xid, TO_BE_RECOVERED, count);
+    }
+
+    /**
+     * @return xid -> status + "_" + number of RMs, as the TM keeps them, of
+     * the transactions not done
+     */
+    public synchronized HashMap<Integer, String> getStatuses() {
+        HashMap<Integer, String> xids = new HashMap<Integer, String>();
+        for (Iterator<Map.Entry<Integer, int[]>> iter = statuses.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<Integer, int[]> entry = iter.next();
+            xids.put(entry.getKey(), STATUSES[entry.getValue()[0]] + "_" + entry.getValue()[1]);
+        }
+        return xids;
+    }
+
+    /**
+     * @return xid -> number of RMs that have yet to learn it committed
+     */
+    public synchronized HashMap<Integer, Integer> getToBeRecovered() {
+        return new HashMap<Integer, Integer>(toBeRecovered);
+    }
+
+    /**
+     * @return xid -> commit sequence number of the transactions committed
+     * but not done, or to be recovered
+     */
+    public synchronized HashMap<Integer, Integer> getCommitSeqs() {
+        return new HashMap<Integer, Integer>(commitSeqs);
+    }
+
+    /**
+     * Puts the records appended so far on disk.
+     */
+    public void force() throws IOException {
+        MappedByteBuffer b;
+        synchronized (this) {
+            b = buffer;
+        }
+        try {
+            // a roll meanwhile forced it already
+            b.force();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private boolean append(int xid, int status, int count) {
+        redo(xid, status, count);
+        try {
+            if (position + RECORD_SIZE > buffer.capacity())
+                rollOver();
+            else
+                put(xid, status, count);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Can't write xid log " + segmentFile(segment) + ": " + e);
+            return false;
+        }
+    }
+
+    private void redo(int xid, int status, int count) {
+        if (status == DONE) {
+            statuses.remove(new Integer(xid));
+            if (!toBeRecovered.containsKey(new Integer(xid)))
+                commitSeqs.remove(new Integer(xid));
+        } else if (status == TO_BE_RECOVERED)
+            toBeRecovered.put(new Integer(xid), new Integer(count));
+        else if (status == COMMIT_SEQ)
+            commitSeqs.put(new Integer(xid), new Integer(count));
+        else
+            statuses.put(new Integer(xid), new int[]{status, count});
+    }
+
+    private void put(int xid, int status, int count) {
+        buffer.putInt(position, xid);
+        buffer.putInt(position + 4, status);
+        buffer.putInt(position + 8, count);
+        buffer.putInt(position + 12, check(xid, status, count));
+        position += RECORD_SIZE;
+    }
+
+    // starts a new segment with what is not done, then deletes the others
+    private void rollOver() throws IOException {
+        int records = statuses.size() + toBeRecovered.size() + commitSeqs.size();
+        MappedByteBuffer next = map(segment + 1, Math.max(SEGMENT_SIZE, 2 * RECORD_SIZE * records));
+        if (buffer != null)
+            buffer.force();
+        segment++;
+        buffer = next;
+        position = 0;
+        for (Iterator<Map.Entry<Integer, Integer>> iter = commitSeqs.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<Integer, Integer> entry = iter.next();
+            put(entry.getKey().intValue(), COMMIT_SEQ, entry.getValue().intValue());
+        }
+        for (Iterator<Map.Entry<Integer, int[]>> iter = statuses.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<Integer, int[]> entry = iter.next();
+            put(entry.getKey().intValue(), entry.getValue()[0], entry.getValue()[1]);
+        }
+        for (Iterator<Map.Entry<Integer, Integer>> iter = toBeRecovered.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<Integer, Integer> entry = iter.next();
+            put(entry.getKey().intValue(), TO_BE_RECOVERED, entry.getValue().intValue());
+        }
+        buffer.force();
+        int[] segments = segments();
+        for (int i = 0; i < segments.length && segments[i] < segment; i++) {
+            if (!segmentFile(segments[i]).delete())
+                System.err.println("Can't delete xid log segment " + segmentFile(segments[i]));
+        }
+    }
+
+    // maps segment n, at least size bytes of it
+    private MappedByteBuffer map(int n, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segmentFile(n), "rw");
+        try {
+            long length = Math.max(raf.length(), size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int check(int xid, int status, int count) {
+        return ((xid * 31 + status) * 31 + count) ^ CHECK_SEED;
+    }
+
+    private File segmentFile(int n) {
+        return new File(dir, prefix + n + ".log");
+    }
+
+    // numbers of the segments on disk, in ascending order
+    private int[] segments() {
+        String[] names = dir.list();
+        if (names == null)
+            return new int[0];
+        int[] segments = new int[names.length];
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (!names[i].startsWith(prefix) || !names[i].endsWith(".log"))
+                continue;
+            try {
+                segments[count] = Integer.parseInt(names[i].substring(prefix.length(), names[i].length() - 4));
+                count++;
+            } catch (NumberFormatException e) {
+            }
+        }
+        int[] sorted = new int[count];
+        System.arraycopy(segments, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+}
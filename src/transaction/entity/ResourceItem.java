@@ -13,8 +13,17 @@ import java.io.Serializable;
  * <p>
  */
 public abstract class ResourceItem implements Cloneable, Serializable {
+    // the UID computed before version was added, so items written then
+    // still load, as version 0
+    private static final long serialVersionUID = 8114232485322899518L;
+
     protected boolean isdeleted = false;
 
+    // sequence number of the commit that wrote this version of the item;
+    // lets optimistic transactions find out whether an item they read has
+    // changed since, and snapshot reads pick the version they see
+    protected long version = 0;
+
     public abstract Object getIndex(String indexName) throws InvalidIndexException;
 
     public abstract Object getKey();
@@ -27,5 +36,13 @@ public abstract class ResourceItem implements Cloneable, Serializable {
         isdeleted = true;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public abstract Object clone();
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package transaction;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * @author Duocai Wu
@@ -10,12 +12,32 @@ import java.io.*;
 public class utils {
 
     public static boolean storeObject(Object o, String path) {
+        return storeObject(o, path, false);
+    }
+
+    // writes o to a new file renamed over path, so a crash leaves either the
+    // old or the new object there; with sync, the new one is on disk when
+    // it returns. The new file is written in the tmp directory next to
+    // path, where one left by a crash is not mistaken for a table.
+    public static boolean storeObject(Object o, String path, boolean sync) {
         File xidLog = new File(path);
+        File tmp = null;
+        FileOutputStream fout = null;
         ObjectOutputStream oout = null;
         try {
-            oout = new ObjectOutputStream(new FileOutputStream(xidLog));
+            File dir = new File(xidLog.getAbsoluteFile().getParentFile(), "tmp");
+            dir.mkdirs();
+            tmp = File.createTempFile(xidLog.getName(), ".tmp", dir);
+            fout = new FileOutputStream(tmp);
+            oout = new ObjectOutputStream(new BufferedOutputStream(fout));
             oout.writeObject(o);
             oout.flush();
+            if (sync)
+                fout.getFD().sync();
+            oout.close();
+            oout = null;
+            Files.move(tmp.toPath(), xidLog.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
             return true;
         } catch (Exception e) {
             return false;
@@ -25,6 +47,8 @@ public class utils {
                     oout.close();
             } catch (IOException e1) {
             }
+            if (tmp != null)
+                tmp.delete();
         }
     }
 